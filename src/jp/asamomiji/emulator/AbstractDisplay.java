@@ -74,13 +74,13 @@ public abstract class AbstractDisplay extends JComponent implements Device, Stat
             s = "monochrome";
             break;
         }
-        Application.getProperties().setProperty(PROPERTY_DISPLAY_TYPE, s);
+        computer.getProperties().setProperty(PROPERTY_DISPLAY_TYPE, s);
         initializeColors();
         initializeFonts();
     }
 
     public int getPropertyOfDisplayType() {
-        Properties p = Application.getProperties();
+        Properties p = computer.getProperties();
         String m = p.getProperty(PROPERTY_DISPLAY_TYPE);
         String m_compat = p.getProperty(PROPERTY_DISPLAY_COLOR);
 
@@ -114,21 +114,21 @@ public abstract class AbstractDisplay extends JComponent implements Device, Stat
 
     public void setDisplayColorMap(int kind, String file) {
         if (kind == COLORMAP_DEFAULT) {
-            Application.getProperties().setProperty(PROPERTY_DISPLAY_COLORMAP, "default");
+            computer.getProperties().setProperty(PROPERTY_DISPLAY_COLORMAP, "default");
         }
         else if (kind == COLORMAP_FILE) {
             if (file == null || file.length() == 0) {
                 throw new IllegalArgumentException("ファイルが指定されていないかファイル名長がゼロです。");
             }
             readColorMapFile(file);
-            Application.getProperties().setProperty(PROPERTY_DISPLAY_COLORMAP, "file " + file);
+            computer.getProperties().setProperty(PROPERTY_DISPLAY_COLORMAP, "file " + file);
         }
         applyDisplayColor();
         initializeFonts();
     }
 
     public int getPropertyOfDisplayColorMap() {
-        String m = Application.getProperties().getProperty(PROPERTY_DISPLAY_COLORMAP, "default");
+        String m = computer.getProperties().getProperty(PROPERTY_DISPLAY_COLORMAP, "default");
         if (m.matches("^default\\s.*$")) {
             return COLORMAP_DEFAULT;
         }
@@ -141,7 +141,7 @@ public abstract class AbstractDisplay extends JComponent implements Device, Stat
     }
 
     public String getPropertyOfDisplayColorMapFile() {
-        String m = Application.getProperties().getProperty(PROPERTY_DISPLAY_COLORMAP);
+        String m = computer.getProperties().getProperty(PROPERTY_DISPLAY_COLORMAP);
         if (m == null) {
             return null;
         }
@@ -159,7 +159,7 @@ public abstract class AbstractDisplay extends JComponent implements Device, Stat
     }
 
     public int getPropertyOfDisplayScaling() {
-        String m = Application.getProperties().getProperty(PROPERTY_DISPLAY_SCALING, "1");
+        String m = computer.getProperties().getProperty(PROPERTY_DISPLAY_SCALING, "1");
         int value;
         try {
             value = Integer.parseInt(m);
@@ -173,7 +173,7 @@ public abstract class AbstractDisplay extends JComponent implements Device, Stat
     public void setPropertyOfDisplayScaling(int scaling) {
         this.scaling = scaling;
         computer.getApplication().pack();
-        Application.getProperties().setProperty(PROPERTY_DISPLAY_SCALING, Integer.toString(scaling));
+        computer.getProperties().setProperty(PROPERTY_DISPLAY_SCALING, Integer.toString(scaling));
     }
 
     protected abstract boolean readColorMapFile(String filename);
@@ -190,6 +190,24 @@ public abstract class AbstractDisplay extends JComponent implements Device, Stat
         SwingUtilities.invokeLater(refresher);
     }
 
+    /**
+     * 前回依頼した画面の更新がまだ終わっていないかを返す。
+     * フレームの省略の判断に使う。
+     */
+    public boolean isUpdatePending() {
+        return false;
+    }
+
+    /**
+     * 1フレーム分の画面の更新と描画にかかる平均時間を返す。
+     * フレームの省略の判断に使う。
+     *
+     * @return 時間(ナノ秒)
+     */
+    public double getAverageRenderCost() {
+        return 0;
+    }
+
     public void paintComponent(Graphics g) {
         super.paintComponent(g);
         g.setColor(Color.gray);
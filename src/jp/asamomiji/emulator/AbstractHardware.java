@@ -72,8 +72,12 @@ public class AbstractHardware implements StateSavable {
                 ((StateSavable)m).saveState(ss);
             }
         }
-        display.saveState(ss);
-        soundProcessor.saveState(ss);
+        if (display != null) {
+            display.saveState(ss);
+        }
+        if (soundProcessor != null) {
+            soundProcessor.saveState(ss);
+        }
         keyboard.saveState(ss);
     }
 
@@ -83,8 +87,13 @@ public class AbstractHardware implements StateSavable {
                 ((StateSavable)m).loadState(ss);
             }
         }
-        display.loadState(ss);
-        soundProcessor.loadState(ss);
+        memory.updatePageTable();
+        if (display != null) {
+            display.loadState(ss);
+        }
+        if (soundProcessor != null) {
+            soundProcessor.loadState(ss);
+        }
         keyboard.loadState(ss);
     }
 }
@@ -8,48 +8,53 @@
  */
 package jp.asamomiji.emulator;
 
+import java.util.concurrent.locks.LockSupport;
+
 import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioSystem;
 import javax.sound.sampled.DataLine;
 import javax.sound.sampled.LineUnavailableException;
 import javax.sound.sampled.SourceDataLine;
 
-import jp.asamomiji.emulator.TimeManager.EventCommand;
-
 public abstract class AbstractSoundProcessor extends Thread implements Device, StateSavable {
     public final static String PROPERTY_SOUND_VOLUME = "sound.volume";
     public final static byte DEFAULT_VOLUME = 30;
+    public final static String PROPERTY_SOUND_LATENCY = "sound.latency";
+    public final static int DEFAULT_LATENCY = 50; // ミリ秒
+    public final static int MIN_LATENCY = 10;
+    public final static int MAX_LATENCY = 500;
 
     private final static int SAMPLING_BIT_LENGTH = 8;
     private final static double COEFF = 19.36708871; // 3 / (2 - log10(70))
+    private final static int EVENT_RING_CAPACITY = 4096;
+    private final static double RESYNC_THRESHOLD = 0.05; // 再生位置を合わせ直すずれの大きさ(秒)
+    private final static int MIN_BLOCK_LENGTH = 64; // 一度に生成する最小のサンプル数
+    private final static long DECAY_INTERVAL = 5000000000L; // 遅延を目標値に戻し始めるまでの時間(ナノ秒)
+    private final static int DECAY_STEP = 5; // 遅延を目標値に戻すときの1回の量(ミリ秒)
 
     protected Computer computer;
-    protected volatile double frequency;
     protected double samplingRate;
     protected int volume;
 
     private double amplitude;
     private SourceDataLine line;
     private byte[] buffer = null;
-    private double status = 0;
-
-    class ChangeFrequencyCommand implements EventCommand {
-        private double frequency;
-
-        public ChangeFrequencyCommand(double frequency) {
-            this.frequency = frequency;
-        }
+    private int lineBufferLength;
+    private volatile boolean muted = false;
 
-        @Override
-        public void execute() {
-            changeFrequency(frequency);
-        }
+    // 遅延の目標値(ミリ秒)
+    private volatile int latency;
+    // 出力バッファに溜めておくサンプル数。アンダーランが起きると増やし、起きなければ目標値に戻していく。
+    private volatile int queueLength;
+    private volatile long underrunCount = 0;
 
-        @Override
-        public String toString() {
-            return String.format("change frequency to %d", (int)frequency);
-        }
-    }
+    // エミュレーションスレッドから送られる音の変化
+    private final SoundEventRing events = new SoundEventRing(EVENT_RING_CAPACITY);
+    // エミュレーションスレッドが最後に指定した状態。リングバッファがあふれた場合に使う。
+    private volatile int requestedLevel = 0;
+    private volatile boolean overflowed = false;
+    // 次に生成するサンプルに対応するCPUのクロック。サウンドスレッドだけが使う。
+    private double renderClock = 0;
 
     public AbstractSoundProcessor(Computer computer, double sampling_rate) {
         this.computer = computer;
@@ -68,16 +73,18 @@ public abstract class AbstractSoundProcessor extends Thread implements Device, S
         DataLine.Info info = new DataLine.Info(SourceDataLine.class, format);
         try {
             line = (SourceDataLine)AudioSystem.getLine(info);
-            line.open(format, 1000);
+            line.open(format, toSamples(MAX_LATENCY));
         }
         catch (LineUnavailableException e) {
             throw new RuntimeException("fail to initialize sound I/O");
         }
         line.start();
+        lineBufferLength = line.getBufferSize();
+        setLatency(getPropertyOfLatency());
     }
 
     public int getPropertyOfVolume() {
-        String m = Application.getProperties().getProperty(PROPERTY_SOUND_VOLUME);
+        String m = computer.getProperties().getProperty(PROPERTY_SOUND_VOLUME);
         if (m == null) {
             return DEFAULT_VOLUME;
         }
@@ -95,7 +102,53 @@ public abstract class AbstractSoundProcessor extends Thread implements Device, S
 
     public void setPropertyOfVolume(int volume) {
         setVolume(volume);
-        Application.getProperties().setProperty(PROPERTY_SOUND_VOLUME, Integer.toString(volume));
+        computer.getProperties().setProperty(PROPERTY_SOUND_VOLUME, Integer.toString(volume));
+    }
+
+    public int getPropertyOfLatency() {
+        String m = computer.getProperties().getProperty(PROPERTY_SOUND_LATENCY);
+        if (m == null) {
+            return DEFAULT_LATENCY;
+        }
+        else {
+            int value;
+            try {
+                value = Integer.parseInt(m);
+            }
+            catch (NumberFormatException e) {
+                value = DEFAULT_LATENCY;
+            }
+            return value;
+        }
+    }
+
+    public void setPropertyOfLatency(int latency) {
+        setLatency(latency);
+        computer.getProperties().setProperty(PROPERTY_SOUND_LATENCY, Integer.toString(latency));
+    }
+
+    private void setLatency(int latency) {
+        this.latency = Math.max(MIN_LATENCY, Math.min(latency, MAX_LATENCY));
+    }
+
+    /**
+     * 遅延の目標値を返す。
+     *
+     * @return 遅延(ミリ秒)
+     */
+    public int getLatency() {
+        return latency;
+    }
+
+    /**
+     * 出力バッファが空になった回数を返す。
+     */
+    public long getUnderrunCount() {
+        return underrunCount;
+    }
+
+    private int toSamples(int milliseconds) {
+        return (int)(samplingRate * milliseconds / 1000);
     }
 
     private void setVolume(int volume) {
@@ -103,12 +156,17 @@ public abstract class AbstractSoundProcessor extends Thread implements Device, S
         this.amplitude = calculateAmplitude(volume) * (Math.pow(2, SAMPLING_BIT_LENGTH - 1) - 1);
     }
 
-    public void setLineOn() {
-        status = 1;
-    }
-
-    public void setLineOff() {
-        status = 0;
+    /**
+     * 出力端子のレベルを変更する。エミュレーションスレッドから呼び出す。
+     *
+     * @param clock 変更したCPUのクロック
+     * @param level 変更後のレベル(0または1)
+     */
+    public void setLevel(long clock, int level) {
+        requestedLevel = level;
+        if (!events.offer(clock, level)) {
+            overflowed = true;
+        }
     }
 
     private double calculateAmplitude(int volume) {
@@ -122,13 +180,114 @@ public abstract class AbstractSoundProcessor extends Thread implements Device, S
         }
     }
 
-    public void setFrequency(long time, double frequency) {
-        computer.getTimeManager().addEvent(time, new ChangeFrequencyCommand(frequency));
+    /**
+     * 消音するかを設定する。
+     * 消音中はレベルの変化をクロックによらず直ちに反映する。
+     */
+    public void setMuted(boolean muted) {
+        this.muted = muted;
     }
 
-    public abstract void changeFrequency(double frequency);
+    public boolean isMuted() {
+        return muted;
+    }
 
-    public abstract float tick();
+    /**
+     * 生成位置のクロックが実時間から求めたクロックから大きくずれている場合は合わせ直す。
+     * 実行開始時や一時停止、速度の変更の後にずれが生じる。
+     *
+     * @param now 現在のシステム時刻(ナノ秒)
+     * @param queued 出力バッファに溜まっているサンプル数
+     */
+    private void synchronizeClock(long now, int queued, double clock_frequency) {
+        double play_time = now + (queued - queueLength) * 1E9 / samplingRate;
+        double expected = (play_time - computer.getBaseTime()) * clock_frequency / 1E9;
+        if (Math.abs(renderClock - expected) > RESYNC_THRESHOLD * clock_frequency) {
+            renderClock = expected;
+        }
+    }
+
+    /**
+     * 出力バッファに溜めておくサンプル数を変更する。
+     * 生成位置のクロックを変更した分だけずらして、音の変化が実時間に対して同じ位置で再生されるようにする。
+     */
+    private void changeQueueLength(int length, double clocks_per_sample) {
+        length = Math.max(MIN_BLOCK_LENGTH, Math.min(length, lineBufferLength));
+        renderClock -= (length - queueLength) * clocks_per_sample;
+        queueLength = length;
+    }
+
+    /**
+     * 1ブロック分のサンプルを生成する。
+     * ブロック内で起きたレベルの変化を、クロックから求めたサンプル単位の位置(小数を含む)とともに渡してから生成する。
+     * 消音中はすべての変化をブロックの先頭で反映する。
+     * リングバッファがあふれていた場合は、残りの変化を捨ててエミュレーションスレッドが最後に指定したレベルにする。
+     */
+    private void render(int length, double clocks_per_sample) {
+        double end_clock = renderClock + length * clocks_per_sample;
+        if (overflowed) {
+            overflowed = false;
+            events.clear();
+            changeLevel(0, requestedLevel);
+        }
+        while (!events.isEmpty()) {
+            long clock = events.peekClock();
+            if (!muted && clock >= end_clock) {
+                break;
+            }
+            double position = muted ? 0 : Math.max(0, (clock - renderClock) / clocks_per_sample);
+            changeLevel(position, events.peekLevel());
+            events.remove();
+        }
+        generate(buffer, 0, length, muted ? 0 : amplitude);
+        renderClock = end_clock;
+    }
+
+    /**
+     * サウンド出力を開始してから再生された時間を返す。
+     *
+     * @return 時間(ナノ秒)。取得できない場合は-1
+     */
+    public long getPlaybackTime() {
+        if (line == null) {
+            return -1;
+        }
+        return (long)(line.getLongFramePosition() * 1E9 / samplingRate);
+    }
+
+    /**
+     * 一度に生成して出力するサンプル数を返す。
+     */
+    private int getBlockLength() {
+        return Math.max(MIN_BLOCK_LENGTH, queueLength / 4);
+    }
+
+    /**
+     * 一度に出力するサンプルの再生時間を返す。再生位置はおよそこの単位で進む。
+     *
+     * @return 時間(ナノ秒)
+     */
+    public long getBlockTime() {
+        return (long)(getBlockLength() * 1E9 / samplingRate);
+    }
+
+    /**
+     * 出力端子のレベルを変更する。サウンドスレッドから呼び出す。
+     *
+     * @param position 変化が起きた位置。次にgenerateで生成するブロックの先頭からのサンプル数
+     * @param level 変更後のレベル(0または1)
+     */
+    protected abstract void changeLevel(double position, int level);
+
+    /**
+     * それまでに渡されたレベルの変化から波形を生成する。サウンドスレッドから呼び出す。
+     *
+     * @param buffer 書き込み先
+     * @param offset 書き込みを開始する位置
+     * @param length 生成するサンプル数
+     * @param amplitude 振幅
+     */
+    protected abstract void generate(byte[] buffer, int offset, int length, double amplitude);
 
     @Override
     public void reset() {
@@ -145,12 +304,42 @@ public abstract class AbstractSoundProcessor extends Thread implements Device, S
 
     @Override
     public void run() {
+        boolean started = false;
+        long last_adjust = System.nanoTime();
+        queueLength = Math.min(toSamples(latency), lineBufferLength);
         while (true) {
-            int len = 20;
-            for (int t = 0; t < len; t++) {
-                buffer[t] = (byte)(status * amplitude * tick());
+            long now = System.nanoTime();
+            double clock_frequency = computer.getClockFrequency();
+            double clocks_per_sample = clock_frequency / samplingRate;
+            int target = toSamples(latency);
+            int queued = lineBufferLength - line.available();
+
+            if (started && queued <= 0) {
+                // 出力バッファが空になっていたので、溜めておく量を増やす。
+                underrunCount++;
+                changeQueueLength(queueLength + Math.max(queueLength / 2, MIN_BLOCK_LENGTH), clocks_per_sample);
+                last_adjust = now;
+            }
+            else if (queueLength < target) {
+                changeQueueLength(target, clocks_per_sample);
+                last_adjust = now;
+            }
+            else if (queueLength > target && now - last_adjust > DECAY_INTERVAL) {
+                changeQueueLength(Math.max(target, queueLength - toSamples(DECAY_STEP)), clocks_per_sample);
+                last_adjust = now;
+            }
+
+            // 溜めておく量の1/4以上の空きができてからまとめて生成する。
+            int block = getBlockLength();
+            int length = Math.min(queueLength - queued, buffer.length);
+            if (length < block) {
+                LockSupport.parkNanos((long)((block - length) * 1E9 / samplingRate));
+                continue;
             }
-            line.write(buffer, 0, len);
+            synchronizeClock(now, queued, clock_frequency);
+            render(length, clocks_per_sample);
+            line.write(buffer, 0, length);
+            started = true;
         }
     }
 }
@@ -72,7 +72,6 @@ public abstract class Application extends JFrame {
 
     private final static String DEFAULT_SNAPSHOT_EXTENSION = "snapshot";
 
-    private static Properties properties = new Properties();  //  @jve:decl-index=0:
     private static String currentDirectory = null;
     private static Logger logger;
     private Computer computer = null;
@@ -82,7 +81,7 @@ public abstract class Application extends JFrame {
     }
 
     public static Properties getProperties() {
-        return properties;
+        return Configuration.getProperties();
     }
 
     public static boolean loadProperties(String file_name) {
@@ -233,10 +232,10 @@ public abstract class Application extends JFrame {
     public JComponent createMainPanel() {
         getComputer().getHardware().getDisplay().addKeyListener(new KeyAdapter() {
             public void keyPressed(KeyEvent e) {
-                getComputer().getHardware().getKeyboard().keyPressed(e.getKeyCode());
+                getComputer().postEvent(new KeyPressedEvent(0, e.getKeyCode()));
             }
             public void keyReleased(KeyEvent e) {
-                getComputer().getHardware().getKeyboard().keyReleased(e.getKeyCode());
+                getComputer().postEvent(new KeyReleasedEvent(0, e.getKeyCode()));
             }
         });
         getComputer().getHardware().getDisplay().addMouseListener(new MouseAdapter() {
@@ -0,0 +1,46 @@
+/**
+ * JR-100 Emulator Version 2
+ *
+ * Copyright (c) 2006-2020 Kenichi Miyata
+ *
+ * This software is released under the the MIT license
+ * http://opensource.org/licenses/mit-license.php
+ */
+package jp.asamomiji.emulator;
+
+/*
+ * サウンド出力の再生位置を時計として使うペーサー
+ *
+ * 再生位置は出力バッファ単位でしか進まないため、前回再生位置が変化してからの経過時間で補間する。
+ * 補間は出力ブロック1つ分までとし、補間した時刻より前の再生位置が報告されても時刻は戻さない。
+ * 再生位置が取得できない場合はシステム時刻を使う。
+ */
+public class AudioClockFramePacer extends SleepSpinFramePacer {
+    private AbstractSoundProcessor sound;
+    private long lastAudioTime = -1;
+    private long lastSystemTime;
+    private long lastTime = Long.MIN_VALUE;
+
+    public AudioClockFramePacer(AbstractSoundProcessor sound) {
+        this.sound = sound;
+    }
+
+    @Override
+    protected long now() {
+        long system = System.nanoTime();
+        long audio = (sound == null) ? -1 : sound.getPlaybackTime();
+        if (audio < 0) {
+            return system;
+        }
+        if (audio != lastAudioTime) {
+            lastAudioTime = audio;
+            lastSystemTime = system;
+        }
+        long t = lastAudioTime + Math.min(system - lastSystemTime, sound.getBlockTime());
+        if (t < lastTime) {
+            t = lastTime;
+        }
+        lastTime = t;
+        return t;
+    }
+}
@@ -0,0 +1,31 @@
+/**
+ * JR-100 Emulator Version 2
+ *
+ * Copyright (c) 2006-2020 Kenichi Miyata
+ *
+ * This software is released under the the MIT license
+ * http://opensource.org/licenses/mit-license.php
+ */
+package jp.asamomiji.emulator;
+
+/*
+ * クロックに従って状態が変化するデバイスを表すインターフェース
+ * CPUがアイドルループを検出したときに、どこまで時間を進めてよいかの判断に使う。
+ */
+public interface ClockedDevice extends Device {
+    /**
+     * CPUから読み出せる状態が次に変化しうるクロックを返す。
+     *
+     * @return クロック。変化しない場合はLong.MAX_VALUE
+     */
+    public long getNextEventClock();
+
+    /**
+     * 指定したアドレスの読み出し結果が次のイベントまで変化しないかどうかを返す。
+     * カウンタのように読み出すたびに値が変わるレジスタではfalseを返す。
+     *
+     * @param address アドレス
+     * @return 変化しない場合はtrue
+     */
+    public boolean isStableRead(int address);
+}
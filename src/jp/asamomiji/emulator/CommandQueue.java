@@ -0,0 +1,85 @@
+/**
+ * JR-100 Emulator Version 2
+ *
+ * Copyright (c) 2006-2020 Kenichi Miyata
+ *
+ * This software is released under the the MIT license
+ * http://opensource.org/licenses/mit-license.php
+ */
+package jp.asamomiji.emulator;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/*
+ * UIスレッド等からエミュレーションスレッドへ送るコマンドの待ち行列
+ *
+ * 複数のスレッドから登録でき、エミュレーションスレッドだけが取り出す。
+ * 登録はロックを使わず、CASで単方向リストの先頭に追加する。
+ * 取り出し時にリスト全体を切り離し、逆順にして登録順に戻す。
+ */
+public class CommandQueue {
+    private static final class Node {
+        final EmulatorEvent event;
+        Node next;
+
+        Node(EmulatorEvent event) {
+            this.event = event;
+        }
+    }
+
+    private final AtomicReference<Node> head = new AtomicReference<Node>();
+
+    /**
+     * コマンドを登録する。任意のスレッドから呼び出せる。
+     *
+     * @param event コマンド
+     */
+    public void offer(EmulatorEvent event) {
+        Node node = new Node(event);
+        Node h;
+        do {
+            h = head.get();
+            node.next = h;
+        } while (!head.compareAndSet(h, node));
+    }
+
+    public boolean isEmpty() {
+        return head.get() == null;
+    }
+
+    /**
+     * 登録されたコマンドをすべて取り出す。エミュレーションスレッドから呼び出す。
+     *
+     * @return 登録順に並んだコマンドのリストの先頭。空の場合はnull
+     */
+    private Node takeAll() {
+        Node n = head.getAndSet(null);
+        Node reversed = null;
+        while (n != null) {
+            Node next = n.next;
+            n.next = reversed;
+            reversed = n;
+            n = next;
+        }
+        return reversed;
+    }
+
+    /**
+     * 登録されたコマンドにクロックを設定し、イベントキューに移す。
+     * 一時停止コマンドはイベントキューに一時停止イベントがない場合だけ移す。
+     *
+     * @param clock 設定するクロック
+     * @param queue 移動先のイベントキュー
+     */
+    public void drainTo(long clock, EventQueue queue) {
+        for (Node n = takeAll(); n != null; n = n.next) {
+            n.event.setClock(clock);
+            if (n.event instanceof PauseEvent) {
+                queue.addPauseIfAbsent((PauseEvent)n.event);
+            }
+            else {
+                queue.add(n.event);
+            }
+        }
+    }
+}
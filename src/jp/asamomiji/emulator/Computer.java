@@ -8,7 +8,7 @@
  */
 package jp.asamomiji.emulator;
 
-import java.util.Iterator;
+import java.util.Properties;
 import java.util.Vector;
 import java.util.logging.Level;
 
@@ -28,6 +28,30 @@ public abstract class Computer implements StateSavable, Runnable {
     public static final int STATUS_STOPPED = 2;
 
     public final static String PROPERTY_AUTOMATIC_POWERON = "system.automatic_power_on";
+    public final static String PROPERTY_FRAME_SKIP = "system.frame_skip";
+    public final static String PROPERTY_FRAME_SKIP_MAX = "system.frame_skip_max";
+
+    public final static String PROPERTY_FRAME_PACER = "system.frame_pacer";
+
+    public final static int DEFAULT_FRAME_SKIP_MAX = 4;
+
+    /**
+     * 速度倍率の指定で、実時間に合わせずに可能な限り速く実行することを示す。
+     */
+    public final static int SPEED_UNLIMITED = 0;
+
+    public final static int FRAME_PACER_SLEEP_SPIN = 0;
+    public final static int FRAME_PACER_AUDIO_CLOCK = 1;
+
+    /**
+     * フレーム処理時間の移動平均に新しい値を反映させる割合
+     */
+    private final static double FRAME_COST_WEIGHT = 0.1;
+
+    /**
+     * 音の発生時刻の基準を合わせ直す実時間とクロックのずれ(フレーム数)
+     */
+    private final static int RESYNC_FRAMES = 2;
 
     /**
      * エミュレータが起動してからのクロック数
@@ -35,35 +59,133 @@ public abstract class Computer implements StateSavable, Runnable {
     public long clockCount = 0;
 
     private EventQueue eventQueue = new EventQueue();
+    private CommandQueue commandQueue = new CommandQueue();
     private double refreshRate;
     private CPU cpu;
     private Vector<Device> devices = new Vector<Device>();
     private Application application;
+    private Properties properties;
     private AbstractHardware hardware;
     private long intervalClocks;
-    private int runningStatus;
+    private volatile int runningStatus;
     private Program program;
-    private TimeManager timeManager;
-    private long baseTime;
+    private volatile long baseTime;
+    private volatile int speedMultiplier = 1;
+    private FramePacer framePacer;
+    private volatile FramePacer activeFramePacer;
+    private volatile long frameCount;
+    private volatile long skippedFrameCount;
+    private volatile double averageFrameCost;
+
+    // フレームループの状態(エミュレーションを実行するスレッドだけが参照する)
+    private long clockAdjustment;
+    private long framePeriod;
+    private boolean frameSkip;
+    private int frameSkipMax;
+    private int consecutiveSkips;
+    private int loopSpeed;
+    private long lastRefresh;
 
     public Computer(Application application, double refresh_rate) {
+        this(application, refresh_rate, Configuration.getProperties());
+    }
+
+    /**
+     * コンピュータを構築する。
+     *
+     * @param application アプリケーション
+     * @param refresh_rate 1フレームの長さ(秒)
+     * @param properties このコンピュータが参照する設定値。
+     *        複数のコンピュータを並行して動かす場合は、それぞれに別のオブジェクトを渡す。
+     */
+    public Computer(Application application, double refresh_rate, Properties properties) {
         this.application = application;
+        this.properties = properties;
         this.refreshRate = refresh_rate;
         this.hardware = new AbstractHardware();
         clockCount = 0;
     }
 
     public static boolean getPropertyOfAutomaticPowerOn() {
+        return getPropertyOfAutomaticPowerOn(Configuration.getProperties());
+    }
+
+    public static boolean getPropertyOfAutomaticPowerOn(Properties p) {
         return Boolean.parseBoolean(
-            Application.getProperties().getProperty(PROPERTY_AUTOMATIC_POWERON, "true"));
+            p.getProperty(PROPERTY_AUTOMATIC_POWERON, "true"));
     }
 
     public static void setPropertyOfAutomaticPowerOn(boolean value) {
-        Application.getProperties().setProperty(PROPERTY_AUTOMATIC_POWERON, Boolean.toString(value));
+        Configuration.getProperties().setProperty(PROPERTY_AUTOMATIC_POWERON, Boolean.toString(value));
+    }
+
+    public static boolean getPropertyOfFrameSkip() {
+        return getPropertyOfFrameSkip(Configuration.getProperties());
+    }
+
+    public static boolean getPropertyOfFrameSkip(Properties p) {
+        return Boolean.parseBoolean(
+            p.getProperty(PROPERTY_FRAME_SKIP, "true"));
+    }
+
+    public static void setPropertyOfFrameSkip(boolean value) {
+        Configuration.getProperties().setProperty(PROPERTY_FRAME_SKIP, Boolean.toString(value));
+    }
+
+    /**
+     * 連続して描画を省略できるフレーム数の上限を取得する。
+     */
+    public static int getPropertyOfFrameSkipMax() {
+        return getPropertyOfFrameSkipMax(Configuration.getProperties());
+    }
+
+    public static int getPropertyOfFrameSkipMax(Properties p) {
+        String m = p.getProperty(PROPERTY_FRAME_SKIP_MAX);
+        int value;
+        try {
+            value = (m == null) ? DEFAULT_FRAME_SKIP_MAX : Integer.parseInt(m);
+        }
+        catch (NumberFormatException e) {
+            value = DEFAULT_FRAME_SKIP_MAX;
+        }
+        return Math.max(value, 0);
+    }
+
+    public static void setPropertyOfFrameSkipMax(int value) {
+        Configuration.getProperties().setProperty(PROPERTY_FRAME_SKIP_MAX, Integer.toString(value));
+    }
+
+    /**
+     * フレームループのペーサーを取得する。
+     * 設定値は"sleep_spin"または"audio_clock"で、電源投入時に反映される。
+     *
+     * @return FRAME_PACER_SLEEP_SPINまたはFRAME_PACER_AUDIO_CLOCK
+     */
+    public static int getPropertyOfFramePacer() {
+        return getPropertyOfFramePacer(Configuration.getProperties());
+    }
+
+    public static int getPropertyOfFramePacer(Properties p) {
+        String m = p.getProperty(PROPERTY_FRAME_PACER, "sleep_spin");
+        if (m.equals("audio_clock")) {
+            return FRAME_PACER_AUDIO_CLOCK;
+        }
+        else {
+            return FRAME_PACER_SLEEP_SPIN;
+        }
     }
 
-    public TimeManager getTimeManager() {
-        return timeManager;
+    public static void setPropertyOfFramePacer(int value) {
+        String s;
+        switch (value) {
+        case FRAME_PACER_AUDIO_CLOCK:
+            s = "audio_clock";
+            break;
+        default:
+            s = "sleep_spin";
+            break;
+        }
+        Configuration.getProperties().setProperty(PROPERTY_FRAME_PACER, s);
     }
 
     public long getBaseTime() {
@@ -98,14 +220,125 @@ public abstract class Computer implements StateSavable, Runnable {
         return application;
     }
 
+    /**
+     * このコンピュータが参照する設定値を返す。
+     */
+    public Properties getProperties() {
+        return properties;
+    }
+
     public EventQueue getEventQueue() {
         return eventQueue;
     }
 
+    public CommandQueue getCommandQueue() {
+        return commandQueue;
+    }
+
+    /**
+     * エミュレーションスレッドにイベントを送る。任意のスレッドから呼び出せる。
+     * イベントは次のフレームの開始時にその時点のクロックで処理される。
+     *
+     * @param event イベント
+     */
+    public void postEvent(EmulatorEvent event) {
+        commandQueue.offer(event);
+    }
+
     public long getClockCount() {
         return clockCount;
     }
 
+    /**
+     * 1フレームの長さを秒単位で返す。
+     */
+    public double getRefreshRate() {
+        return refreshRate;
+    }
+
+    /**
+     * 実時間に対する実行速度の倍率を返す。
+     *
+     * @return 倍率。SPEED_UNLIMITEDの場合は実時間に合わせない。
+     */
+    public int getSpeedMultiplier() {
+        return speedMultiplier;
+    }
+
+    /**
+     * 実時間に対する実行速度の倍率を設定する。
+     * エミュレートするクロック周波数は変えず、フレームループの待ち時間だけを変える。
+     * 1倍以外では音を出さず、描画は実時間のフレーム周期に1回に間引く。
+     *
+     * @param multiplier 倍率(1以上)またはSPEED_UNLIMITED
+     */
+    public void setSpeedMultiplier(int multiplier) {
+        if (multiplier < 0) {
+            throw new IllegalArgumentException("invalid speed multiplier: " + multiplier);
+        }
+        this.speedMultiplier = multiplier;
+    }
+
+    /**
+     * 動作中のフレームループのペーサーを返す。電源投入前はnull。
+     */
+    public FramePacer getFramePacer() {
+        return activeFramePacer;
+    }
+
+    /**
+     * フレームループのペーサーを設定する。次の電源投入時から使われる。
+     * nullを設定した場合はプロパティに従って作成する。
+     */
+    public void setFramePacer(FramePacer pacer) {
+        this.framePacer = pacer;
+    }
+
+    private FramePacer createFramePacer() {
+        switch (getPropertyOfFramePacer(properties)) {
+        case FRAME_PACER_AUDIO_CLOCK:
+            return new AudioClockFramePacer(hardware.getSoundProcessor());
+        default:
+            return new SleepSpinFramePacer();
+        }
+    }
+
+    /**
+     * 電源投入後に処理したフレーム数を返す。
+     */
+    public long getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * 電源投入後に描画を省略したフレーム数を返す。
+     */
+    public long getSkippedFrameCount() {
+        return skippedFrameCount;
+    }
+
+    /**
+     * 1フレームの処理にかかった時間の移動平均をナノ秒単位で返す。
+     */
+    public double getAverageFrameCost() {
+        return averageFrameCost;
+    }
+
+    /**
+     * デバイスのCPUから見える状態が次に変化しうるクロックを返す。
+     *
+     * @return クロック。変化しない場合はLong.MAX_VALUE
+     */
+    public long getNextDeviceEventClock() {
+        long next = Long.MAX_VALUE;
+        for (Device d : devices) {
+            if (d instanceof ClockedDevice) {
+                next = Math.min(next, ((ClockedDevice)d).getNextEventClock());
+            }
+        }
+        return next;
+    }
+
     public abstract int getClockFrequency();
 
     public abstract void setClockFrequency(int f);
@@ -141,7 +374,7 @@ public abstract class Computer implements StateSavable, Runnable {
     public void reset() {
         if (getRunningStatus() == STATUS_RUNNING || getRunningStatus() == STATUS_PAUSED) {
             setRunningStatus(STATUS_RUNNING);
-            eventQueue.add(new ResetEvent(0));
+            postEvent(new ResetEvent(0));
         }
     }
 
@@ -151,32 +384,34 @@ public abstract class Computer implements StateSavable, Runnable {
      */
     public void pause() {
         if (getRunningStatus() == STATUS_RUNNING) {
-            Iterator<EmulatorEvent> i = eventQueue.iterator();
-            while (i.hasNext()) {
-                if (i.next() instanceof PauseEvent) {
-                    return ;
-                }
-            }
-            eventQueue.add(new PauseEvent(0));
+            postEvent(new PauseEvent(0));
         }
     }
 
     public void resume() {
         if (getRunningStatus() == STATUS_PAUSED) {
-            eventQueue.add(new ResumeEvent(0));
+            postEvent(new ResumeEvent(0));
         }
     }
 
     public void powerOn() {
+        switchOn();
+        start();
+    }
+
+    /**
+     * 電源を入れてリセットする。フレームループは開始しない。
+     * 電源投入時の処理を追加する場合は、このメソッドをオーバーライドする。
+     */
+    protected void switchOn() {
         this.intervalClocks = (long)(refreshRate * getClockFrequency());
         setRunningStatus(STATUS_RUNNING);
         reset();
-        start();
     }
 
     public void powerOff() {
         if (getRunningStatus() == STATUS_RUNNING || getRunningStatus() == STATUS_PAUSED) {
-            eventQueue.add(new PowerOffEvent(0));
+            postEvent(new PowerOffEvent(0));
         }
     }
 
@@ -192,64 +427,143 @@ public abstract class Computer implements StateSavable, Runnable {
     }
 
     private boolean hasConsumableEvent(long end_clock) {
-        if (eventQueue.isEmpty()) {
+        long c = eventQueue.firstClock();
+        if (c == Long.MAX_VALUE) {
             return false;
         }
-        long c = eventQueue.first().getClock();
         if (getRunningStatus() == STATUS_PAUSED) {
-            return c == 0;
+            return c <= clockCount;
         }
         else {
             return c <= end_clock;
         }
     }
 
+    /**
+     * フレームループを開始し、電源が切れるまで呼び出したスレッドで実行する。
+     */
     public void start() {
-        double emulator_time = 0;
-        double real_time = 0;
-        long clock_adjustment = 0;
+        beginFrameLoop();
+        while (runFrame()) {
+            if (loopSpeed != SPEED_UNLIMITED) {
+                activeFramePacer.waitForNextFrame();
+            }
+        }
+    }
 
+    /**
+     * フレームループの状態を初期化する。
+     * 以後はrunFrameを呼び出すたびに1フレームずつ実行できる。
+     */
+    protected void beginFrameLoop() {
+        clockAdjustment = 0;
+        framePeriod = (long)(refreshRate * 1E9);
+        frameSkip = getPropertyOfFrameSkip(properties);
+        frameSkipMax = getPropertyOfFrameSkipMax(properties);
+        consecutiveSkips = 0;
+
+        frameCount = 0;
+        skippedFrameCount = 0;
+        averageFrameCost = 0;
+        FramePacer pacer = (framePacer != null) ? framePacer : createFramePacer();
+        activeFramePacer = pacer;
         baseTime = System.nanoTime();
-        while (getRunningStatus() != STATUS_STOPPED) {
-            long end_clock = clockCount + intervalClocks - clock_adjustment;
+        pacer.start(framePeriod);
+        loopSpeed = 1;
+        lastRefresh = 0;
+    }
+
+    /**
+     * 1フレーム分を実行する。フレームの開始時刻まで待つのは呼び出し側で行う。
+     *
+     * @return 電源が入ったままの場合はtrue
+     */
+    protected boolean runFrame() {
+        FramePacer pacer = activeFramePacer;
+        long end_clock = clockCount + intervalClocks - clockAdjustment;
 
-            long start = System.nanoTime();
+        long start = System.nanoTime();
 
-            while (hasConsumableEvent(end_clock)) {
-                EmulatorEvent event = eventQueue.first();
-                eventQueue.remove(event);
-                executeIfPossible(event.getClock() - clockCount);
-                event.dispatch(this);
+        if (loopSpeed != speedMultiplier) {
+            loopSpeed = speedMultiplier;
+            pacer.start(loopSpeed == SPEED_UNLIMITED ? framePeriod : framePeriod / loopSpeed);
+            if (hardware.getSoundProcessor() != null) {
+                hardware.getSoundProcessor().setMuted(loopSpeed != 1);
             }
-            clock_adjustment = executeIfPossible(end_clock - clockCount);
-            hardware.getDisplay().refresh();
-
-            long end = System.nanoTime();
-            long wait = (long)(refreshRate * 1E9) - (end - start);
-            wait += (long)(emulator_time - real_time);
-            if (wait > 0) {
-                try {
-                    Thread.sleep(wait / 1000000, (int)(wait % 1000000));
-                }
-                catch (InterruptedException e) {
-                }
-                catch (Exception e) {
-                    e.printStackTrace();
-                }
+            if (loopSpeed == 1) {
+                // 音の発生時刻の基準を現在のクロックに合わせ直す。
+                baseTime = start - (long)(clockCount * 1E9 / getClockFrequency());
+            }
+        }
+        else if (loopSpeed == 1) {
+            // 一時停止中や、状態の読み込みでクロックが戻った場合、フレームペーサーが遅れを取り戻すのを
+            // 諦めた場合は、実時間とクロックの対応がずれたままになり、音の変化がすべて再生位置より前になる。
+            // フレームペーサーがこれから取り戻す遅れを除いたずれが大きい場合は、音の発生時刻の基準を合わせ直す。
+            long drift = start - Math.max(0, pacer.getLag()) - baseTime - (long)(clockCount * 1E9 / getClockFrequency());
+            if (getRunningStatus() == STATUS_PAUSED || Math.abs(drift) > RESYNC_FRAMES * framePeriod) {
+                baseTime += drift;
             }
-            real_time += System.nanoTime() - start;
-            emulator_time += refreshRate * 1E9;
         }
-        return ;
+
+        commandQueue.drainTo(clockCount, eventQueue);
+        while (hasConsumableEvent(end_clock)) {
+            EmulatorEvent event = eventQueue.poll();
+            executeIfPossible(event.getClock() - clockCount);
+            event.dispatch(this);
+        }
+        clockAdjustment = executeIfPossible(end_clock - clockCount);
+
+        boolean skip;
+        if (loopSpeed == 1) {
+            // 実時間に遅れているか、フレームの処理時間が周期を超えている場合は描画を省略する。
+            // 画面の更新と描画はイベントディスパッチスレッドで行われ、エミュレーションと同じCPUを奪い合うため、
+            // その時間もフレームの処理時間に含めて判断する。
+            // 前のフレームの更新がまだ終わっていない場合は、公開しても描画されずに上書きされるだけなので省略する。
+            AbstractDisplay display = hardware.getDisplay();
+            double render_cost = (display != null) ? display.getAverageRenderCost() : 0;
+            boolean late = pacer.getLag() > framePeriod || averageFrameCost + render_cost > framePeriod;
+            boolean backlog = display != null && display.isUpdatePending();
+            skip = frameSkip && (late || backlog) && consecutiveSkips < frameSkipMax;
+        }
+        else {
+            // 高速実行中は実時間のフレーム周期に1回だけ描画する。
+            skip = start - lastRefresh < framePeriod;
+        }
+        if (skip) {
+            consecutiveSkips++;
+            skippedFrameCount++;
+        }
+        else {
+            consecutiveSkips = 0;
+            lastRefresh = start;
+            if (hardware.getDisplay() != null) {
+                hardware.getDisplay().refresh();
+            }
+        }
+        frameCount++;
+
+        long end = System.nanoTime();
+        averageFrameCost += ((end - start) - averageFrameCost) * FRAME_COST_WEIGHT;
+        return getRunningStatus() != STATUS_STOPPED;
+    }
+
+    /**
+     * フレームループが実時間に合わせずに実行しているかを返す。
+     */
+    protected boolean isUnlimitedSpeed() {
+        return loopSpeed == SPEED_UNLIMITED;
     }
 
     private void gamepadStart() {
         Gamepad g = getHardware().getGamepad();
+        if (g == null) {
+            return;
+        }
         ComponentStatus[] amap = Gamepad.getPropertyOfGamepadAxisMapping();
         ComponentStatus[] bmap = Gamepad.getPropertyOfGamepadButtonMapping();
         g.setAxisType(Gamepad.getPropertyOfGamepadAxisUsed());
-        g.setAxisKeyProcessor(new AxisKeyboardKeyProcessor(g, amap, getHardware().getKeyboard()));
-        g.setButtonKeyProcessor(new ButtonKeyboardKeyProcessor(g, bmap, getHardware().getKeyboard()));
+        g.setAxisKeyProcessor(new AxisKeyboardKeyProcessor(g, amap, this));
+        g.setButtonKeyProcessor(new ButtonKeyboardKeyProcessor(g, bmap, this));
         Controller c = g.searchForController();
         if (c != null) {
             g.setController(c);
@@ -259,10 +573,8 @@ public abstract class Computer implements StateSavable, Runnable {
 
     public void run() {
         try {
-            timeManager = new TimeManager();
-            timeManager.start();
             gamepadStart();
-            if (!getPropertyOfAutomaticPowerOn()) {
+            if (!getPropertyOfAutomaticPowerOn(properties)) {
                 synchronized(application.getComputer()) {
                     try {
                         application.getComputer().wait();
@@ -274,7 +586,10 @@ public abstract class Computer implements StateSavable, Runnable {
             }
             while (true) {
                 application.getComputer().powerOn();
-                application.getComputer().getHardware().getDisplay().repaint();
+                AbstractDisplay display = application.getComputer().getHardware().getDisplay();
+                if (display != null) {
+                    display.repaint();
+                }
                 synchronized(application.getComputer()) {
                     try {
                         application.getComputer().wait();
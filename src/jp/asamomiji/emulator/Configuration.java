@@ -0,0 +1,27 @@
+/**
+ * JR-100 Emulator Version 2
+ *
+ * Copyright (c) 2006-2020 Kenichi Miyata
+ *
+ * This software is released under the the MIT license
+ * http://opensource.org/licenses/mit-license.php
+ */
+package jp.asamomiji.emulator;
+
+import java.util.Properties;
+
+/*
+ * エミュレータの設定値を保持するクラス
+ *
+ * Applicationクラス(JFrame)を経由せずに参照できるため、ヘッドレス構成でもAWTを初期化しない。
+ */
+public final class Configuration {
+    private static Properties properties = new Properties();
+
+    private Configuration() {
+    }
+
+    public static Properties getProperties() {
+        return properties;
+    }
+}
@@ -19,6 +19,10 @@ public abstract class EmulatorEvent {
         return clock;
     }
 
+    public void setClock(long clock) {
+        this.clock = clock;
+    }
+
     public void decreaseClock(long interval) {
         clock -= interval;
         if (clock < 0) {
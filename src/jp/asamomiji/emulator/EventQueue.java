@@ -8,26 +8,153 @@
  */
 package jp.asamomiji.emulator;
 
-import java.util.TreeSet;
-import java.util.Comparator;
-
-@SuppressWarnings("serial")
-public class EventQueue extends TreeSet<EmulatorEvent> {
-    public EventQueue() {
-        super(new Comparator<EmulatorEvent>() {
-            public int compare(EmulatorEvent e1, EmulatorEvent e2) {
-                long c1 = e1.getClock();
-                long c2 = e2.getClock();
-                if (c1 < c2) {
-                    return -1;
-                }
-                else if (c1 > c2){
-                    return 1;
-                }
-                else {
-                    return 0;
-                }
+import java.util.Arrays;
+
+/*
+ * エミュレータイベントの待ち行列
+ *
+ * クロックをキーとする二分ヒープで、同じクロックのイベントは登録順に取り出す。
+ * キーはプリミティブの配列で保持し、容量が足りている間は登録と取り出しでオブジェクトを生成しない。
+ * エミュレーションスレッドからだけ操作する。他のスレッドからはCommandQueueを経由して登録する。
+ */
+public class EventQueue {
+    private final static int INITIAL_CAPACITY = 16;
+
+    private long[] clocks = new long[INITIAL_CAPACITY];
+    private long[] sequences = new long[INITIAL_CAPACITY];
+    private EmulatorEvent[] events = new EmulatorEvent[INITIAL_CAPACITY];
+    private int size = 0;
+    private long nextSequence = 0;
+    private int pauseCount = 0;
+
+    /**
+     * イベントを登録する。
+     *
+     * @param event イベント
+     */
+    public void add(EmulatorEvent event) {
+        if (size == events.length) {
+            int capacity = size * 2;
+            clocks = Arrays.copyOf(clocks, capacity);
+            sequences = Arrays.copyOf(sequences, capacity);
+            events = Arrays.copyOf(events, capacity);
+        }
+        if (event instanceof PauseEvent) {
+            pauseCount++;
+        }
+        siftUp(size++, event.getClock(), nextSequence++, event);
+    }
+
+    /**
+     * 一時停止イベントが登録されていなければ登録する。
+     *
+     * @param event 一時停止イベント
+     * @return 登録した場合はtrue
+     */
+    public boolean addPauseIfAbsent(PauseEvent event) {
+        if (pauseCount > 0) {
+            return false;
+        }
+        add(event);
+        return true;
+    }
+
+    /**
+     * 最も早いイベントを取り除いて返す。
+     *
+     * @return イベント。空の場合はnull
+     */
+    public EmulatorEvent poll() {
+        if (size == 0) {
+            return null;
+        }
+        EmulatorEvent result = events[0];
+        size--;
+        if (size > 0) {
+            siftDown(0, clocks[size], sequences[size], events[size]);
+        }
+        events[size] = null;
+        if (result instanceof PauseEvent) {
+            pauseCount--;
+        }
+        return result;
+    }
+
+    /**
+     * 最も早いイベントを返す。
+     *
+     * @return イベント。空の場合はnull
+     */
+    public EmulatorEvent first() {
+        return size == 0 ? null : events[0];
+    }
+
+    /**
+     * 最も早いイベントのクロックを返す。
+     *
+     * @return クロック。空の場合はLong.MAX_VALUE
+     */
+    public long firstClock() {
+        return size == 0 ? Long.MAX_VALUE : clocks[0];
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * 一時停止イベントが登録されているかを返す。
+     */
+    public boolean hasPauseEvent() {
+        return pauseCount > 0;
+    }
+
+    public void clear() {
+        Arrays.fill(events, 0, size, null);
+        size = 0;
+        pauseCount = 0;
+    }
+
+    private static boolean before(long c1, long s1, long c2, long s2) {
+        return c1 < c2 || (c1 == c2 && s1 < s2);
+    }
+
+    private void siftUp(int index, long clock, long sequence, EmulatorEvent event) {
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (!before(clock, sequence, clocks[parent], sequences[parent])) {
+                break;
+            }
+            set(index, clocks[parent], sequences[parent], events[parent]);
+            index = parent;
+        }
+        set(index, clock, sequence, event);
+    }
+
+    private void siftDown(int index, long clock, long sequence, EmulatorEvent event) {
+        int half = size >>> 1;
+        while (index < half) {
+            int child = 2 * index + 1;
+            int right = child + 1;
+            if (right < size && before(clocks[right], sequences[right], clocks[child], sequences[child])) {
+                child = right;
             }
-        });
+            if (!before(clocks[child], sequences[child], clock, sequence)) {
+                break;
+            }
+            set(index, clocks[child], sequences[child], events[child]);
+            index = child;
+        }
+        set(index, clock, sequence, event);
+    }
+
+    private void set(int index, long clock, long sequence, EmulatorEvent event) {
+        clocks[index] = clock;
+        sequences[index] = sequence;
+        events[index] = event;
     }
 }
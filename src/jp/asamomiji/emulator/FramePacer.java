@@ -0,0 +1,52 @@
+/**
+ * JR-100 Emulator Version 2
+ *
+ * Copyright (c) 2006-2020 Kenichi Miyata
+ *
+ * This software is released under the the MIT license
+ * http://opensource.org/licenses/mit-license.php
+ */
+package jp.asamomiji.emulator;
+
+/*
+ * フレームループの実行間隔を調整するペーサー
+ */
+public interface FramePacer {
+    /**
+     * 計時を開始する。
+     *
+     * @param period フレーム周期(ナノ秒)
+     */
+    public void start(long period);
+
+    /**
+     * 次のフレームの開始時刻まで待つ。
+     */
+    public void waitForNextFrame();
+
+    /**
+     * 待たずに次のフレームに進み、その開始予定時刻までの残り時間を返す。
+     * 呼び出し側で残り時間が過ぎるのを待った後、フレームの開始時にmarkFrameStartを呼び出す。
+     * waitForNextFrameはこの2つを待ちを挟んで続けて行うことに等しい。
+     *
+     * @return 残り時間(ナノ秒)。すでに過ぎている場合は0以下
+     */
+    public long advance();
+
+    /**
+     * フレームの処理を開始したことを記録する。
+     */
+    public void markFrameStart();
+
+    /**
+     * 現在のフレームの予定開始時刻に対する遅れを返す。
+     *
+     * @return 遅れ(ナノ秒)。予定より早い場合は負の値
+     */
+    public long getLag();
+
+    /**
+     * フレーム間隔のヒストグラムを返す。
+     */
+    public FrameTimeHistogram getHistogram();
+}
@@ -0,0 +1,148 @@
+/**
+ * JR-100 Emulator Version 2
+ *
+ * Copyright (c) 2006-2020 Kenichi Miyata
+ *
+ * This software is released under the the MIT license
+ * http://opensource.org/licenses/mit-license.php
+ */
+package jp.asamomiji.emulator;
+
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * 多数のコンピュータのフレームループを少数のスレッドで実行するスケジューラ
+ *
+ * 各コンピュータのフレームループを1フレームずつのタスクに分け、共有のスレッドプールで実行する。
+ * フレームの開始時刻までの待ちはスレッドを止めずに、開始時刻に次のタスクを予約することで行う。
+ * 実時間に合わせないコンピュータは1フレームごとに待ち行列の末尾に戻し、他のコンピュータと交互に実行する。
+ * スレッド数はコンピュータの数によらず一定である。
+ */
+public class FrameScheduler {
+    private final ScheduledThreadPoolExecutor executor;
+    // 完了していないフレームループ。終了時にFutureを完了させるために使う。
+    private final Set<FrameTask> tasks = ConcurrentHashMap.newKeySet();
+
+    private static final class DaemonThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "frame-scheduler-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
+    /*
+     * 1台のコンピュータのフレームループ
+     */
+    private final class FrameTask implements Runnable {
+        private final Computer computer;
+        private final CompletableFuture<Void> done = new CompletableFuture<Void>();
+        private boolean first = true;
+
+        FrameTask(Computer computer) {
+            this.computer = computer;
+        }
+
+        @Override
+        public void run() {
+            try {
+                FramePacer pacer = computer.getFramePacer();
+                if (first) {
+                    first = false;
+                }
+                else if (!computer.isUnlimitedSpeed()) {
+                    pacer.markFrameStart();
+                }
+                if (!computer.runFrame()) {
+                    done.complete(null);
+                    return;
+                }
+                if (computer.isUnlimitedSpeed()) {
+                    executor.execute(this);
+                }
+                else {
+                    long remaining = pacer.advance();
+                    if (remaining > 0) {
+                        executor.schedule(this, remaining, TimeUnit.NANOSECONDS);
+                    }
+                    else {
+                        executor.execute(this);
+                    }
+                }
+            }
+            catch (Throwable t) {
+                done.completeExceptionally(t);
+            }
+        }
+    }
+
+    /**
+     * 使用可能なプロセッサ数のスレッドで実行するスケジューラを作る。
+     */
+    public FrameScheduler() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param threads スレッド数
+     */
+    public FrameScheduler(int threads) {
+        executor = new ScheduledThreadPoolExecutor(threads, new DaemonThreadFactory());
+        executor.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * コンピュータの電源を入れ、フレームループをこのスケジューラで実行する。
+     * 実行は電源を切る(Computer.powerOff)まで続く。
+     *
+     * @param computer コンピュータ
+     * @return 電源が切れたときに完了するFuture。実行中に例外が発生した場合はその例外で完了する。
+     *         スケジューラが終了した場合はCancellationExceptionで完了する。
+     */
+    public CompletableFuture<Void> start(Computer computer) {
+        FrameTask task = new FrameTask(computer);
+        tasks.add(task);
+        task.done.whenComplete((v, t) -> tasks.remove(task));
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        computer.switchOn();
+                        computer.beginFrameLoop();
+                    }
+                    catch (Throwable t) {
+                        task.done.completeExceptionally(t);
+                        return;
+                    }
+                    task.run();
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            task.done.completeExceptionally(new CancellationException("スケジューラは終了しています。"));
+        }
+        return task.done;
+    }
+
+    /**
+     * スケジューラを終了させる。実行中のフレームループは次のフレームから実行されなくなる。
+     * 完了していないフレームループのFutureはCancellationExceptionで完了させる。
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+        for (FrameTask task : tasks) {
+            task.done.completeExceptionally(new CancellationException("スケジューラが終了しました。"));
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/**
+ * JR-100 Emulator Version 2
+ *
+ * Copyright (c) 2006-2020 Kenichi Miyata
+ *
+ * This software is released under the the MIT license
+ * http://opensource.org/licenses/mit-license.php
+ */
+package jp.asamomiji.emulator;
+
+/*
+ * フレーム間隔のヒストグラム
+ *
+ * 0.1ミリ秒刻みで200ミリ秒までを数え、それを超える値は最後の区間に含める。
+ * エミュレーションスレッドで記録し、任意のスレッドから参照できる。
+ */
+public class FrameTimeHistogram {
+    private final static long BUCKET_WIDTH = 100 * 1000;  // 0.1ms
+    private final static int BUCKET_COUNT = 2000;
+
+    private long[] buckets = new long[BUCKET_COUNT];
+    private long count = 0;
+    private long max = 0;
+
+    /**
+     * フレーム間隔を記録する。
+     *
+     * @param nanos フレーム間隔(ナノ秒)
+     */
+    public synchronized void record(long nanos) {
+        int index = (int)Math.min(Math.max(nanos, 0) / BUCKET_WIDTH, BUCKET_COUNT - 1);
+        buckets[index]++;
+        count++;
+        max = Math.max(max, nanos);
+    }
+
+    /**
+     * 指定した百分位のフレーム間隔を返す。値は区間の上端に丸める。
+     *
+     * @param percentile 百分位(0-100)
+     * @return フレーム間隔(ナノ秒)。記録がない場合は0
+     */
+    public synchronized long getPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long)Math.ceil(count * percentile / 100.0);
+        long sum = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            sum += buckets[i];
+            if (sum >= rank) {
+                return Math.min((i + 1) * BUCKET_WIDTH, max);
+            }
+        }
+        return max;
+    }
+
+    public long getP50() {
+        return getPercentile(50);
+    }
+
+    public long getP99() {
+        return getPercentile(99);
+    }
+
+    public synchronized long getMax() {
+        return max;
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized void clear() {
+        buckets = new long[BUCKET_COUNT];
+        count = 0;
+        max = 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("frames=%d p50=%.2fms p99=%.2fms max=%.2fms",
+                getCount(), getP50() / 1E6, getP99() / 1E6, getMax() / 1E6);
+    }
+}
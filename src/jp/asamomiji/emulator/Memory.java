@@ -25,6 +25,23 @@ public class Memory implements Addressable {
         this.length = length;
         data = new byte[length];
     }
+
+    /**
+     * 配列の内容をそのまま読み出せる場合にtrueを返す。
+     * trueの場合、MemorySystemはload8を呼ばずに配列を直接参照する。
+     */
+    public boolean isDirectlyReadable() {
+        return true;
+    }
+
+    /**
+     * 配列にそのまま書き込める場合にtrueを返す。
+     * 書き込みに副作用がある場合はオーバーライドしてfalseを返す。
+     */
+    public boolean isDirectlyWritable() {
+        return true;
+    }
+
     public int getStartAddress() {
         return start;
     }
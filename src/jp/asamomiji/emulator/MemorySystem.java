@@ -13,11 +13,41 @@ import java.util.Collection;
 import java.util.HashMap;
 
 public final class MemorySystem {
+    /**
+     * 監視対象アドレスへの書き込みを通知するためのインターフェース
+     */
+    public interface WriteListener {
+        public void written(int address);
+    }
+
+    private final static boolean DEBUG = false;
+
+    // ページ(256バイト)単位のメモリマップ
+    private final static int PAGE_SHIFT = 8;
+    private final static int PAGE_SIZE = 1 << PAGE_SHIFT;
+
     private Addressable[] instance;
     private HashMap<Class<? extends Addressable>, Addressable> map =
         new HashMap<Class<? extends Addressable>, Addressable>();
 
-    private boolean debug = false;
+    // 配列を直接読み書きできるページの配列と先頭アドレス(それ以外のページはnull)
+    private byte[][] readPages;
+    private int[] readBases;
+    private byte[][] writePages;
+    private int[] writeBases;
+
+    // アドレスごとの監視の参照数とページごとの監視アドレス数
+    private int[] watchCount = null;
+    private int[] pageWatchCount = null;
+    private WriteListener[] listeners = new WriteListener[0];
+
+    // アイドルループ検出用の書き込み回数と、値が変化しうる読み出しの回数
+    private long storeCount = 0;
+    private long volatileReadCount = 0;
+
+    // どのメモリにも割り当てられていないアドレスへのアクセス回数
+    private long unmappedLoadCount = 0;
+    private long unmappedStoreCount = 0;
 
     public MemorySystem() {
     }
@@ -29,11 +59,55 @@ public final class MemorySystem {
         instance = new Addressable[capacity];
         UnmappedMemory um = new UnmappedMemory(0, capacity);
         Arrays.fill(instance, um);
+        int pages = (capacity + PAGE_SIZE - 1) >> PAGE_SHIFT;
+        readPages = new byte[pages][];
+        readBases = new int[pages];
+        writePages = new byte[pages][];
+        writeBases = new int[pages];
     }
 
     public void registMemory(Addressable m) {
         Arrays.fill(instance, m.getStartAddress(), m.getEndAddress() + 1, m);
         map.put(m.getClass(), m);
+        updatePageTable();
+    }
+
+    /**
+     * ページテーブルを作り直す。
+     * メモリの配列を差し替えた場合(ステートの読み込み等)にも呼び出す必要がある。
+     */
+    public void updatePageTable() {
+        for (int page = 0; page < readPages.length; page++) {
+            updatePage(page);
+        }
+    }
+
+    private void updatePage(int page) {
+        int start = page << PAGE_SHIFT;
+        int end = Math.min(start + PAGE_SIZE, instance.length) - 1;
+        Addressable a = instance[start];
+        readPages[page] = null;
+        writePages[page] = null;
+        for (int i = start; i <= end; i++) {
+            if (instance[i] != a) {
+                return;
+            }
+        }
+        if (!(a instanceof Memory)) {
+            return;
+        }
+        Memory m = (Memory) a;
+        if (m.getStartAddress() > start || m.getEndAddress() < end) {
+            return;
+        }
+        if (m.isDirectlyReadable()) {
+            readPages[page] = m.data;
+            readBases[page] = m.start;
+        }
+        if (m.isDirectlyWritable() && (pageWatchCount == null || pageWatchCount[page] == 0)) {
+            writePages[page] = m.data;
+            writeBases[page] = m.start;
+        }
     }
 
     public Addressable getMemory(Class<? extends Addressable> clazz) {
@@ -44,6 +118,75 @@ public final class MemorySystem {
         return map.values();
     }
 
+    public Addressable getMemoryAt(int address) {
+        return instance[address & 0xffff];
+    }
+
+    /**
+     * 書き込み監視の通知先を追加する。
+     *
+     * @param listener 通知先
+     */
+    public void addWriteListener(WriteListener listener) {
+        listeners = Arrays.copyOf(listeners, listeners.length + 1);
+        listeners[listeners.length - 1] = listener;
+        if (watchCount == null) {
+            watchCount = new int[instance.length];
+            pageWatchCount = new int[readPages.length];
+        }
+    }
+
+    /**
+     * 指定したアドレス範囲を書き込み監視の対象に加える。
+     * 監視対象を含むページの書き込みは配列を直接使わずに行う。
+     *
+     * @param start 開始アドレス
+     * @param end 終了アドレス(範囲に含む)
+     */
+    public void watch(int start, int end) {
+        for (int i = start; i <= end; i++) {
+            if (watchCount[i]++ == 0 && pageWatchCount[i >> PAGE_SHIFT]++ == 0) {
+                writePages[i >> PAGE_SHIFT] = null;
+            }
+        }
+    }
+
+    /**
+     * 指定したアドレス範囲を書き込み監視の対象から外す。
+     *
+     * @param start 開始アドレス
+     * @param end 終了アドレス(範囲に含む)
+     */
+    public void unwatch(int start, int end) {
+        for (int i = start; i <= end; i++) {
+            if (--watchCount[i] == 0 && --pageWatchCount[i >> PAGE_SHIFT] == 0) {
+                updatePage(i >> PAGE_SHIFT);
+            }
+        }
+    }
+
+    private void notifyWritten(int address) {
+        for (WriteListener l : listeners) {
+            l.written(address);
+        }
+    }
+
+    public long getStoreCount() {
+        return storeCount;
+    }
+
+    public long getVolatileReadCount() {
+        return volatileReadCount;
+    }
+
+    public long getUnmappedLoadCount() {
+        return unmappedLoadCount;
+    }
+
+    public long getUnmappedStoreCount() {
+        return unmappedStoreCount;
+    }
+
     public int getStartAddress(Class<? extends Addressable> c) {
         return map.get(c).getStartAddress();
     }
@@ -54,8 +197,23 @@ public final class MemorySystem {
 
     public byte load8(int address) {
         address &= 0xffff;
-        byte v = instance[address].load8(address);
-        if (debug) {
+        byte v;
+        byte[] page = readPages[address >> PAGE_SHIFT];
+        if (page != null) {
+            v = page[address - readBases[address >> PAGE_SHIFT]];
+        }
+        else {
+            Addressable a = instance[address];
+            v = a.load8(address);
+            if (a instanceof UnmappedMemory) {
+                unmappedLoadCount++;
+            }
+            else if (!(a instanceof Memory)
+                    && !(a instanceof ClockedDevice && ((ClockedDevice) a).isStableRead(address))) {
+                volatileReadCount++;
+            }
+        }
+        if (DEBUG) {
             System.out.printf("load8: addr=%04x val=%02x\n", address, v);
         }
         return v;
@@ -63,17 +221,39 @@ public final class MemorySystem {
 
     public void store8(int address, byte value) {
         address &= 0xffff;
-        if (debug) {
+        if (DEBUG) {
             System.out.printf("store8: addr=%04x val=%02x\n", address, value & 0xff);
         }
-        instance[address].store8(address, value);
+        storeCount++;
+        byte[] page = writePages[address >> PAGE_SHIFT];
+        if (page != null) {
+            page[address - writeBases[address >> PAGE_SHIFT]] = value;
+            return;
+        }
+        Addressable a = instance[address];
+        if (a instanceof UnmappedMemory) {
+            unmappedStoreCount++;
+        }
+        a.store8(address, value);
+        if (watchCount != null && watchCount[address] != 0) {
+            notifyWritten(address);
+        }
     }
 
     public short load16(int address) {
         int a1 = address & 0xffff;
         int a2 = (address + 1) & 0xffff;
-        short v = (short)(((instance[a1].load8(a1) & 0xff) << 8) + (instance[a2].load8(a2) & 0xff));
-        if (debug) {
+        short v;
+        byte[] page = readPages[a1 >> PAGE_SHIFT];
+        if (page != null && (a1 & (PAGE_SIZE - 1)) != PAGE_SIZE - 1) {
+            // 同一ページ内の読み出し
+            int i = a1 - readBases[a1 >> PAGE_SHIFT];
+            v = (short)(((page[i] & 0xff) << 8) + (page[i + 1] & 0xff));
+        }
+        else {
+            v = (short)(((load8(a1) & 0xff) << 8) + (load8(a2) & 0xff));
+        }
+        if (DEBUG) {
             System.out.printf("load16: addr=%04x val=%04x\n", a1, v & 0xffff);
         }
         return v;
@@ -82,10 +262,19 @@ public final class MemorySystem {
     public void store16(int address, short value) {
         int a1 = address & 0xffff;
         int a2 = (address + 1) & 0xffff;
-        if (debug) {
+        if (DEBUG) {
             System.out.printf("store16: addr=%04x val=%04x\n", a1, value & 0xffff);
         }
-        instance[a1].store8(a1, (byte)((value & 0xff00) >> 8));
-        instance[a2].store8(a2, (byte)(value & 0xff));
+        byte[] page = writePages[a1 >> PAGE_SHIFT];
+        if (page != null && (a1 & (PAGE_SIZE - 1)) != PAGE_SIZE - 1) {
+            // 同一ページ内の書き込み
+            int i = a1 - writeBases[a1 >> PAGE_SHIFT];
+            storeCount++;
+            page[i] = (byte)((value & 0xff00) >> 8);
+            page[i + 1] = (byte)(value & 0xff);
+            return;
+        }
+        store8(a1, (byte)((value & 0xff00) >> 8));
+        store8(a2, (byte)(value & 0xff));
     }
 }
@@ -16,6 +16,11 @@ public abstract class ROM extends Memory {
         super(start, length);
     }
 
+    @Override
+    public boolean isDirectlyWritable() {
+        return false;
+    }
+
     public void store16(int address, short value) {
     }
 
@@ -0,0 +1,101 @@
+/**
+ * JR-100 Emulator Version 2
+ *
+ * Copyright (c) 2006-2020 Kenichi Miyata
+ *
+ * This software is released under the the MIT license
+ * http://opensource.org/licenses/mit-license.php
+ */
+package jp.asamomiji.emulator;
+
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * 待ち時間の大部分をLockSupport.parkNanosで休み、残りをスピンして待つペーサー
+ *
+ * 各フレームの開始予定時刻は基準時刻 + フレーム数 * 周期として整数で計算するため、誤差が蓄積しない。
+ * 大きく遅れた場合は追いつこうとせず、基準時刻を合わせ直す。
+ */
+public class SleepSpinFramePacer implements FramePacer {
+    public final static long DEFAULT_SPIN_THRESHOLD = 1000 * 1000;  // 1ms
+
+    private final static int MAX_LAG_FRAMES = 10;
+
+    private long spinThreshold;
+    private long period;
+    private long origin;
+    private long frames;
+    private long lastFrameStart;
+    private FrameTimeHistogram histogram = new FrameTimeHistogram();
+
+    public SleepSpinFramePacer() {
+        this(DEFAULT_SPIN_THRESHOLD);
+    }
+
+    /**
+     * @param spinThreshold 開始予定時刻までの残りがこの時間(ナノ秒)を下回ったらスピンで待つ。
+     */
+    public SleepSpinFramePacer(long spinThreshold) {
+        this.spinThreshold = spinThreshold;
+    }
+
+    @Override
+    public void start(long period) {
+        this.period = period;
+        this.origin = now();
+        this.frames = 0;
+        this.lastFrameStart = origin;
+        histogram.clear();
+    }
+
+    @Override
+    public void waitForNextFrame() {
+        long remaining = advance();
+        while (remaining > 0) {
+            if (remaining > spinThreshold) {
+                LockSupport.parkNanos(remaining - spinThreshold);
+            }
+            else {
+                Thread.onSpinWait();
+            }
+            remaining = origin + frames * period - now();
+        }
+        markFrameStart();
+    }
+
+    @Override
+    public long advance() {
+        frames++;
+        return origin + frames * period - now();
+    }
+
+    @Override
+    public void markFrameStart() {
+        long t = now();
+        long deadline = origin + frames * period;
+        if (t - deadline > MAX_LAG_FRAMES * period) {
+            origin = t - frames * period;
+        }
+        histogram.record(t - lastFrameStart);
+        lastFrameStart = t;
+    }
+
+    @Override
+    public long getLag() {
+        return now() - (origin + frames * period);
+    }
+
+    @Override
+    public FrameTimeHistogram getHistogram() {
+        return histogram;
+    }
+
+    /**
+     * 現在時刻を返す。
+     *
+     * @return 時刻(ナノ秒)
+     */
+    protected long now() {
+        return System.nanoTime();
+    }
+}
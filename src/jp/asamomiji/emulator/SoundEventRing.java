@@ -0,0 +1,105 @@
+/**
+ * JR-100 Emulator Version 2
+ *
+ * Copyright (c) 2006-2020 Kenichi Miyata
+ *
+ * This software is released under the the MIT license
+ * http://opensource.org/licenses/mit-license.php
+ */
+package jp.asamomiji.emulator;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * エミュレーションスレッドからサウンドスレッドへ出力端子のレベルの変化を送るリングバッファ
+ *
+ * 1つの生産者スレッドと1つの消費者スレッドの間で使い、ロックを使わない。
+ * 各要素は変化が起きたCPUのクロックと変化後のレベルの組で、クロックの順に登録する。
+ * 生産者は要素を書き込んでから書き込み位置を公開し、消費者は要素を読んでから読み出し位置を公開する。
+ * 満杯の場合は登録に失敗し、生産者は待たない。
+ */
+public class SoundEventRing {
+    private final int mask;
+    private final long[] clocks;
+    private final byte[] levels;
+
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    // 相手側の位置のキャッシュ。それぞれのスレッドだけが使う。
+    private long cachedHead = 0;
+    private long cachedTail = 0;
+
+    /**
+     * @param capacity 要素数。2のべき乗に切り上げる。
+     */
+    public SoundEventRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+        mask = size - 1;
+        clocks = new long[size];
+        levels = new byte[size];
+    }
+
+    /**
+     * レベルの変化を登録する。生産者スレッドから呼び出す。
+     *
+     * @param clock 変化が起きたCPUのクロック
+     * @param level 変化後のレベル(0または1)
+     * @return 満杯で登録できなかった場合はfalse
+     */
+    public boolean offer(long clock, int level) {
+        long t = tail.get();
+        if (t - cachedHead > mask) {
+            cachedHead = head.get();
+            if (t - cachedHead > mask) {
+                return false;
+            }
+        }
+        int i = (int)t & mask;
+        clocks[i] = clock;
+        levels[i] = (byte)level;
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    /**
+     * 取り出せる要素があるかを返す。消費者スレッドから呼び出す。
+     */
+    public boolean isEmpty() {
+        long h = head.get();
+        if (h < cachedTail) {
+            return false;
+        }
+        cachedTail = tail.get();
+        return h >= cachedTail;
+    }
+
+    /**
+     * 先頭の要素のクロックを返す。isEmptyがfalseを返した後に消費者スレッドから呼び出す。
+     */
+    public long peekClock() {
+        return clocks[(int)head.get() & mask];
+    }
+
+    /**
+     * 先頭の要素のレベルを返す。isEmptyがfalseを返した後に消費者スレッドから呼び出す。
+     */
+    public int peekLevel() {
+        return levels[(int)head.get() & mask];
+    }
+
+    /**
+     * 先頭の要素を取り除く。消費者スレッドから呼び出す。
+     */
+    public void remove() {
+        head.lazySet(head.get() + 1);
+    }
+
+    /**
+     * すべての要素を取り除く。消費者スレッドから呼び出す。
+     */
+    public void clear() {
+        cachedTail = tail.get();
+        head.lazySet(cachedTail);
+    }
+}
@@ -0,0 +1,68 @@
+/**
+ * JR-100 Emulator Version 2
+ *
+ * Copyright (c) 2006-2020 Kenichi Miyata
+ *
+ * This software is released under the the MIT license
+ * http://opensource.org/licenses/mit-license.php
+ */
+package jp.asamomiji.emulator;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * 1つの生産者スレッドと1つの消費者スレッドの間でデータを受け渡すトリプルバッファ
+ *
+ * 生産者は裏バッファに書き込んでから公開し、消費者は公開された最新のバッファを取得する。
+ * どちらも相手を待つことはなく、消費者が読んでいるバッファを生産者が書き換えることもない。
+ * 消費者が間に合わない場合、古いバッファは読まれずに上書きされる。
+ */
+public class TripleBuffer<T> {
+    private final static int INDEX_MASK = 0x03;
+    private final static int FRESH = 0x04;
+
+    private final Object[] buffers;
+    private int back = 0;
+    private final AtomicInteger middle = new AtomicInteger(1);
+    private int front = 2;
+
+    public TripleBuffer(T b0, T b1, T b2) {
+        buffers = new Object[] {b0, b1, b2};
+    }
+
+    /**
+     * 生産者が書き込むバッファを返す。
+     */
+    @SuppressWarnings("unchecked")
+    public T getBackBuffer() {
+        return (T)buffers[back];
+    }
+
+    /**
+     * 裏バッファを公開し、新しい裏バッファに切り替える。
+     */
+    public void publish() {
+        back = middle.getAndSet(back | FRESH) & INDEX_MASK;
+    }
+
+    /**
+     * 新しく公開されたバッファがあれば、それを消費者が読むバッファにする。
+     *
+     * @return 新しいバッファに切り替えた場合はtrue
+     */
+    public boolean update() {
+        if ((middle.get() & FRESH) == 0) {
+            return false;
+        }
+        front = middle.getAndSet(front) & INDEX_MASK;
+        return true;
+    }
+
+    /**
+     * 消費者が読むバッファを返す。
+     */
+    @SuppressWarnings("unchecked")
+    public T getFrontBuffer() {
+        return (T)buffers[front];
+    }
+}
@@ -8,79 +8,110 @@
  */
 package jp.asamomiji.emulator.device;
 
+import java.util.Arrays;
+
 import jp.asamomiji.emulator.AbstractSoundProcessor;
 import jp.asamomiji.emulator.Computer;
 import jp.asamomiji.emulator.StateSet;
 
 /*
  * BEEP音を発生するサウンドプロセッサを定義する。
+ *
+ * 出力端子のレベルの変化ごとに帯域制限したインパルスを差分バッファに加え、それを積分して波形を作る。
+ * 積分した結果は帯域制限したステップ(BLEP)の重ね合わせになるため、周波数や波形によらずエイリアスが生じない。
+ * 処理量はレベルの変化1回につきカーネルの長さ分と、1サンプルにつき定数分だけである。
+ * 最後に直流成分を取り除き、レベルが変化しない間は無音に戻す。
  */
 public class Beep extends AbstractSoundProcessor {
-    private final static int MAX_RANK = 30;
-    private final static int TABLE_LENGTH = 8192;
-    private double time;
-    private volatile double delta;
-    private static volatile float[][] table2 = new float[MAX_RANK + 1][TABLE_LENGTH];
-    private volatile float[] t = table2[0];
+    private final static int KERNEL_WIDTH = 16;
+    private final static int KERNEL_PHASES = 64;
+    private final static double CUTOFF = 0.45; // サンプリング周波数に対する遮断周波数の比
+    private final static double HIGHPASS = 0.999; // 直流成分を取り除くフィルタの係数
+
+    /**
+     * 位相ごとの帯域制限したインパルス。クラスの初期化時に一度だけ作り、すべてのインスタンスで共有する。
+     * 各位相の係数の和は1で、積分すると大きさ1のステップになる。
+     */
+    private final static float[][] kernel = createKernel();
+
+    private final float[] deltas;
+    private double level = -1;
+    private double integral = -1;
+    private double previous = -1;
+    private double output = 0;
 
     public Beep(Computer computer, double sampling_rate) {
         super(computer, sampling_rate);
-
-        for (int rank = 1; rank <= MAX_RANK; rank++) {
-            for (int i = 0; i < TABLE_LENGTH; i++) {
-                table2[rank][i] = value(rank, (double)i / TABLE_LENGTH);
-            }
-        }
-        for (int i = 0; i < TABLE_LENGTH; i++) {
-            table2[0][i] = 0.0f;
-        }
-        time = 0;
+        deltas = new float[(int)sampling_rate + KERNEL_WIDTH];
     }
 
-    private float value(int n, double phase) {
-        double x = 2 * Math.PI * phase;
-        double temp = 0;
-        for (int k = 1; k <= n; k++) {
-            temp += Math.sin((2 * k - 1) * x) / (2 * k - 1);
+    /*
+     * Blackman窓をかけたsinc関数の係数を位相ごとに作る。
+     * 位相pの係数はインパルスの位置がp/KERNEL_PHASESサンプルだけ遅れたものになる。
+     */
+    private static float[][] createKernel() {
+        float[][] table = new float[KERNEL_PHASES][KERNEL_WIDTH];
+        for (int p = 0; p < KERNEL_PHASES; p++) {
+            double offset = (double)p / KERNEL_PHASES;
+            double sum = 0;
+            double[] k = new double[KERNEL_WIDTH];
+            for (int i = 0; i < KERNEL_WIDTH; i++) {
+                double x = i - KERNEL_WIDTH / 2 - offset;
+                double w = (i - offset + 1) / (KERNEL_WIDTH + 1);
+                double window = 0.42 - 0.5 * Math.cos(2 * Math.PI * w) + 0.08 * Math.cos(4 * Math.PI * w);
+                double sinc = (x == 0) ? 1 : Math.sin(2 * Math.PI * CUTOFF * x) / (2 * Math.PI * CUTOFF * x);
+                k[i] = sinc * window;
+                sum += k[i];
+            }
+            for (int i = 0; i < KERNEL_WIDTH; i++) {
+                table[p][i] = (float)(k[i] / sum);
+            }
         }
-        return (float)(4 * temp / Math.PI);
+        return table;
     }
 
-    public void changeFrequency(double frequency) {
-        int n = (int) Math.floor((samplingRate / (2 * frequency) + 1) / 2);
-        if (n >= MAX_RANK) {
-            n = MAX_RANK;
+    @Override
+    protected void changeLevel(double position, int level) {
+        double value = (level != 0) ? 1 : -1;
+        double step = value - this.level;
+        if (step == 0) {
+            return;
         }
-        synchronized(this) {
-            Beep.this.frequency = frequency;
-            t = table2[n];
-            delta = TABLE_LENGTH * frequency / samplingRate;
+        this.level = value;
+        int index = Math.min((int)position, deltas.length - KERNEL_WIDTH);
+        float[] k = kernel[Math.min((int)((position - (int)position) * KERNEL_PHASES), KERNEL_PHASES - 1)];
+        for (int i = 0; i < KERNEL_WIDTH; i++) {
+            deltas[index + i] += step * k[i];
         }
     }
 
     @Override
-    public synchronized float tick() {
-        while ((int)time >= TABLE_LENGTH) {
-            time -= TABLE_LENGTH;
+    protected void generate(byte[] buffer, int offset, int length, double amplitude) {
+        double sum = integral;
+        double x1 = previous;
+        double y = output;
+        for (int i = 0; i < length; i++) {
+            sum += deltas[i];
+            y = sum - x1 + HIGHPASS * y;
+            x1 = sum;
+            double v = amplitude * y;
+            buffer[offset + i] = (byte)Math.max(-127, Math.min(127, v));
         }
-        int index = (int)time;
-        time += delta;
-        return t[index];
+        integral = sum;
+        previous = x1;
+        output = y;
+
+        // ブロックの後ろにはみ出したインパルスを先頭に移す。
+        System.arraycopy(deltas, length, deltas, 0, KERNEL_WIDTH);
+        Arrays.fill(deltas, KERNEL_WIDTH, length + KERNEL_WIDTH, 0);
     }
 
     @Override
     public void saveState(StateSet ss) {
-        ss.set("AbstractSoundProcessor.frequency", frequency);
-        ss.set("AbstractSoundProcessor.beep.time", time);
-        ss.set("AbstractSoundProcessor.beep.delta", delta);
-        ss.set("AbstractSoundProcessor.beep.current_table", t);
+        // 出力端子のレベルはVIAの状態から復元されるため、保存しない。
     }
 
     @Override
     public void loadState(StateSet ss) {
-        frequency = (Double)ss.get("AbstractSoundProcessor.frequency");
-        time = (Double)ss.get("AbstractSoundProcessor.beep.time");
-        delta = (Double)ss.get("AbstractSoundProcessor.beep.delta");
-        t = (float[])ss.get("AbstractSoundProcessor.beep.current_table");
     }
 }
@@ -228,17 +228,45 @@ public final class MB8861 extends CPU {
     public final static byte OP_ADX_IMM = (byte) 0xec;
     public final static byte OP_ADX_EXT = (byte) 0xfc;
 
+    // 命令実行エンジンの種類
+    public final static int ENGINE_SWITCH = 0;
+    public final static int ENGINE_TABLE = 1;
+    public final static int ENGINE_JIT = 2;
+    public final static int ENGINE_PREDECODE = 3;
+
+    // アドレッシングモード
+    public final static int MODE_IMPLIED = 0;
+    public final static int MODE_IMMEDIATE = 1;
+    public final static int MODE_IMMEDIATE16 = 2;
+    public final static int MODE_DIRECT = 3;
+    public final static int MODE_INDEXED = 4;
+    public final static int MODE_EXTENDED = 5;
+    public final static int MODE_RELATIVE = 6;
+    public final static int MODE_IMMEDIATE_INDEXED = 7;
+
     public byte A;
     public byte B;
     public short IX;
     public short SP;
     public short PC;
-    public boolean CH = false;
     public boolean CI = false;
-    public boolean CN = false;
-    public boolean CZ = false;
-    public boolean CV = false;
-    public boolean CC = false;
+
+    // 遅延評価する条件コード(isCH()等で参照する)
+    private int flagH = 0;
+    private int flagN = 0;
+    private int flagZ = 1;
+    private int flagV = V_CLEAR;
+    private int flagC = 0;
+    private int vX;
+    private int vY;
+    private int vR;
+
+    // Vフラグの計算方法
+    private final static int V_CLEAR = 0;
+    private final static int V_SET = 1;
+    private final static int V_ADD = 2;
+    private final static int V_SUB = 3;
+    private final static int V_SHIFT = 4;
 
     private boolean resetStatus = false;
     private boolean nmiStatus = false;
@@ -247,6 +275,27 @@ public final class MB8861 extends CPU {
     private boolean haltProcessed = false;
     private boolean fetchWai = false;
 
+    private final static int SIGNAL_NONE = 0;
+    private final static int SIGNAL_SKIP = 1;
+    private final static int SIGNAL_RESET = 2;
+
+    private int engine = ENGINE_SWITCH;
+
+    // アイドルループ検出
+    private boolean idleDetection = false;
+    private long executeEnd = 0;
+    private int idleHead = -1;
+    private long idleClock;
+    private long idleStores;
+    private long idleReads;
+    private byte idleA;
+    private byte idleB;
+    private short idleIX;
+    private short idleSP;
+    private int idleCCR;
+    private MB8861Compiler compiler = null;
+    private MB8861DecodeCache decodeCache = null;
+    boolean codeModified = false;
     private MemorySystem m;
 
     public MB8861(Computer computer) {
@@ -254,6 +303,51 @@ public final class MB8861 extends CPU {
         m = computer.getHardware().getMemory();
     }
 
+    /**
+     * 命令実行エンジンを設定する。
+     *
+     * @param engine ENGINE_SWITCH、ENGINE_TABLE、ENGINE_JITまたはENGINE_PREDECODE
+     */
+    public void setEngine(int engine) {
+        this.engine = engine;
+        if (engine == ENGINE_JIT && compiler == null) {
+            compiler = new MB8861Compiler(this, m);
+        }
+        if (engine == ENGINE_PREDECODE && decodeCache == null) {
+            decodeCache = new MB8861DecodeCache(m);
+        }
+    }
+
+    public int getEngine() {
+        return engine;
+    }
+
+    /**
+     * JITエンジンがコンパイルするまでの実行回数を設定する。エンジンの比較試験で使う。
+     *
+     * @param threshold 実行回数
+     */
+    void setCompileThreshold(int threshold) {
+        setEngine(ENGINE_JIT);
+        compiler.setThreshold(threshold);
+    }
+
+    /**
+     * アイドルループの検出を設定する。
+     * 有効にすると、WAIや状態を変えずに同じ処理を繰り返すループを検出したときに、
+     * 次のイベントの直前までクロックを進める。
+     *
+     * @param enable 検出する場合はtrue
+     */
+    public void setIdleDetection(boolean enable) {
+        idleDetection = enable;
+        idleHead = -1;
+    }
+
+    public boolean getIdleDetection() {
+        return idleDetection;
+    }
+
     @Override
     public void reset() {
         resetStatus = true;
@@ -310,14 +404,78 @@ public final class MB8861 extends CPU {
         m.store16(address & 0xffff, value);
     }
 
+    /*
+     * 条件コードの遅延評価
+     *
+     * N、Z、C、Hは結果の値を保持しておき、参照されたときに判定する。
+     * Vは演算の種類とオペランドを保持しておき、参照されたときに計算する。
+     */
+    public boolean isCH() {
+        return flagH > 0x0f;
+    }
+
+    public boolean isCN() {
+        return flagN < 0;
+    }
+
+    public boolean isCZ() {
+        return flagZ == 0;
+    }
+
+    public boolean isCV() {
+        switch (flagV) {
+        case V_CLEAR:
+            return false;
+        case V_SET:
+            return true;
+        case V_ADD:
+            return (vX > 0) & (vY > 0) & (vR < 0) || (vX < 0) & (vY < 0) & (vR >= 0);
+        case V_SUB:
+            return (vX > 0) & (vY < 0) & (vR < 0) || (vX < 0) & (vY > 0) & (vR >= 0);
+        default:
+            // V_SHIFT: 結果のNと桁あふれしたCが異なればセットされる。
+            return (vR < 0) != ((vX & 0x100) != 0);
+        }
+    }
+
+    public boolean isCC() {
+        return (flagC & 0x100) != 0;
+    }
+
+    public void setCH(boolean value) {
+        flagH = value ? 0x10 : 0;
+    }
+
+    public void setCN(boolean value) {
+        flagN = value ? -1 : 0;
+    }
+
+    public void setCZ(boolean value) {
+        flagZ = value ? 0 : 1;
+    }
+
+    public void setCV(boolean value) {
+        flagV = value ? V_SET : V_CLEAR;
+    }
+
+    public void setCC(boolean value) {
+        flagC = value ? 0x100 : 0;
+    }
+
+    private void setV(int kind, int x, int y, int r) {
+        flagV = kind;
+        vX = x;
+        vY = y;
+        vR = r;
+    }
+
     private byte add(byte x, byte y) {
         int t = (x & 0xff) + (y & 0xff);
         byte tt = (byte) t;
-        CH = ((x & 0x0f) + (y & 0x0f)) > 0x0f;
-        CN = tt < 0;
-        CZ = tt == 0;
-        CV = (x > 0) & (y > 0) & CN || (x < 0) & (y < 0) & !CN;
-        CC = (t & 0x100) != 0;
+        flagH = (x & 0x0f) + (y & 0x0f);
+        flagN = flagZ = tt;
+        setV(V_ADD, x, y, tt);
+        flagC = t;
         return tt;
     }
 
@@ -326,113 +484,104 @@ public final class MB8861 extends CPU {
         short tt = (short) t;
         // この関数(ADX命令に対応)のフラグ変化は予想による。
         // CH = ???;
-        CN = tt < 0;
-        CZ = tt == 0;
-        CV = (x > 0) & (y > 0) & CN || (x < 0) & (y < 0) & !CN;
-        CC = (t & 0x10000) != 0;
+        flagN = flagZ = tt;
+        setV(V_ADD, x, y, tt);
+        flagC = t >> 8;
         return tt;
     }
 
     private byte adc(byte x, byte y) {
-        int t = (x & 0xff) + (y & 0xff) + (CC ? 1 : 0);
+        int t = (x & 0xff) + (y & 0xff) + (isCC() ? 1 : 0);
         byte tt = (byte) t;
-        CH = ((x & 0x0f) + (y & 0x0f)) > 0x0f;
-        CN = tt < 0;
-        CZ = tt == 0;
-        CV = (x > 0) & (y > 0) & CN || (x < 0) & (y < 0) & !CN;
-        CC = (t & 0x100) != 0;
+        flagH = (x & 0x0f) + (y & 0x0f);
+        flagN = flagZ = tt;
+        setV(V_ADD, x, y, tt);
+        flagC = t;
         return tt;
     }
 
     private byte and(byte x, byte y) {
         int t = x & y;
-        CN = (t & 0x80) != 0;
-        CZ = t == 0;
-        CV = false;
+        flagN = flagZ = (byte) t;
+        flagV = V_CLEAR;
         return (byte) (t & 0xff);
     }
 
     public byte nim(byte x, byte y) {
         int t = x & y;
-        CZ = t == 0;
-        CN = !CZ;
-        CV = false;
+        flagZ = t;
+        flagN = (t == 0) ? 0 : -1;
+        flagV = V_CLEAR;
         return (byte) (t & 0xff);
     }
 
     private byte asl(byte x) {
         int t = ((x & 0xff) << 1);
-        CN = (byte) t < 0;
-        CZ = (byte) t == 0;
-        CC = t > 0xff;
-        CV = CN != CC;
+        flagN = flagZ = (byte) t;
+        flagC = t;
+        setV(V_SHIFT, t, 0, (byte) t);
         return (byte) (t & 0xff);
     }
 
     private byte asr(byte x) {
         int t = ((x & 0xff) >> 1) | (x & 0x80);
-        CN = (byte) t < 0;
-        CZ = t == 0;
-        CC = (x & 0x01) != 0;
-        CV = CN != CC;
+        flagN = flagZ = (byte) t;
+        flagC = (x & 0x01) << 8;
+        setV(V_SHIFT, flagC, 0, (byte) t);
         return (byte) (t & 0xff);
     }
 
     private void bit(byte x, byte y) {
         int t = x & y;
-        CN = (byte) t < 0;
-        CZ = t == 0;
-        CV = false;
+        flagN = flagZ = (byte) t;
+        flagV = V_CLEAR;
     }
 
     private void tmm(byte x, byte y) {
         if (x == 0 | y == 0) {
-            CN = false;
-            CZ = true;
-            CV = false;
+            setCN(false);
+            setCZ(true);
+            setCV(false);
         }
         else if (y == (byte) 0xff) {
-            CN = false;
-            CZ = false;
-            CV = true;
+            setCN(false);
+            setCZ(false);
+            setCV(true);
         }
         else {
-            CN = true;
-            CZ = false;
-            CV = false;
+            setCN(true);
+            setCZ(false);
+            setCV(false);
         }
     }
 
     private void cmp(byte x, byte y) {
         int t = (x & 0xff) - (y & 0xff);
         byte tt = (byte) (t);
-        CN = tt < 0;
-        CZ = tt == 0;
-        CV = (x > 0) & (y < 0) & CN || (x < 0) & (y > 0) & !CN;
-        CC = (t & 0x100) != 0;
+        flagN = flagZ = tt;
+        setV(V_SUB, x, y, tt);
+        flagC = t;
     }
 
     private byte clr() {
-        CN = false;
-        CZ = true;
-        CV = false;
-        CC = false;
+        flagN = flagZ = 0;
+        flagV = V_CLEAR;
+        flagC = 0;
         return 0x00;
     }
 
     private byte com(byte x) {
         byte t = (byte) (0xff - (x & 0xff));
-        CN = t < 0;
-        CZ = t == 0;
-        CV = false;
-        CC = true;
+        flagN = flagZ = t;
+        flagV = V_CLEAR;
+        flagC = 0x100;
         return t;
     }
 
     private void daa() {
         int t = A & 0xff;
 
-        if ((t & 0x0f) >= 0x0a || CH) {
+        if ((t & 0x0f) >= 0x0a || isCH()) {
             t += 0x06;
         }
         if ((t & 0xf0) >= 0xa0) {
@@ -440,82 +589,74 @@ public final class MB8861 extends CPU {
         }
         byte tt = (byte) t;
 
-        CN = tt < 0;
-        CZ = tt == 0;
-        CV = (A > 0) & CN || (A < 0) & !CN;
-        CC = ((A & 0xf0) >= 0xa0) || CC;
+        flagN = flagZ = tt;
+        setV(V_ADD, A, A, tt);
+        setCC(((A & 0xf0) >= 0xa0) || isCC());
         A = tt;
     }
 
     private byte dec(byte x) {
         int t = (x - 1) & 0xff;
-        CN = (byte) t < 0;
-        CZ = t == 0;
-        CV = x == (byte) 0x80;
+        flagN = flagZ = (byte) t;
+        setCV(x == (byte) 0x80);
         return (byte) t;
     }
 
     private byte eor(byte x, byte y) {
         int t = (x & 0xff) ^ (y & 0xff);
-        CN = (byte) t < 0;
-        CZ = t == 0;
-        CV = false;
+        flagN = flagZ = (byte) t;
+        flagV = V_CLEAR;
         return (byte) t;
     }
 
     public byte xim(byte x, byte y) {
         int t = x ^ y;
-        CZ = t == 0;
-        CN = !CZ;
+        flagZ = t;
+        flagN = (t == 0) ? 0 : -1;
         return (byte) (t & 0xff);
     }
 
     private byte inc(byte x) {
         int t = (x + 1) & 0xff;
-        CN = (byte) t < 0;
-        CZ = t == 0;
-        CV = x == (byte) 0x7f;
+        flagN = flagZ = (byte) t;
+        setCV(x == (byte) 0x7f);
         return (byte) t;
     }
 
     private byte lda(byte x) {
-        CN = x < 0;
-        CZ = x == 0;
-        CV = false;
+        flagN = flagZ = x;
+        flagV = V_CLEAR;
         return x;
     }
 
     private byte lsr(byte x) {
         int t = (x & 0xff) >> 1;
-        CN = false;
-        CZ = t == 0;
-        CC = (x & 0x1) != 0;
-        CV = CN != CC;
+        flagN = flagZ = t;
+        flagC = (x & 0x1) << 8;
+        setV(V_SHIFT, flagC, 0, t);
         return (byte) t;
     }
 
     private byte neg(byte x) {
         int t = 0 - (x & 0xff);
-        CN = (byte) t < 0;
-        CZ = t == 0;
-        CV = (byte) t == 0x80;
-        CC = (byte) t == 0x00;
+        flagN = flagZ = (byte) t;
+        setCV((byte) t == 0x80);
+        setCC((byte) t == 0x00);
         return (byte) t;
     }
 
     private byte ora(byte x, byte y) {
         int t = x | y;
-        CN = (byte) t < 0;
-        CZ = t == 0;
-        CV = false;
+        flagN = flagZ = (byte) t;
+        flagV = V_CLEAR;
         return (byte) t;
     }
 
     public byte oim(byte x, byte y) {
         int t = x | y;
-        CZ = t == 0;
-        CN = !CZ;
-        CV = false;
+        flagZ = t;
+        flagN = (t == 0) ? 0 : -1;
+        flagV = V_CLEAR;
         return (byte) (t & 0xff);
     }
 
@@ -531,82 +672,74 @@ public final class MB8861 extends CPU {
 
     private byte rol(byte x) {
         int t = (x & 0xff) << 1;
-        t |= CC ? 0x01 : 0;
-        CN = (byte) t < 0;
-        CZ = t == 0;
-        CC = t > 0xff;
-        CV = CN != CC;
+        t |= isCC() ? 0x01 : 0;
+        flagN = (byte) t;
+        flagZ = t;
+        flagC = t;
+        setV(V_SHIFT, t, 0, (byte) t);
         return (byte) t;
     }
 
     private byte ror(byte x) {
         int t = (x & 0xff) >> 1;
-        t |= CC ? 0x80 : 0;
-        CN = (byte) t < 0;
-        CZ = (byte) t == 0;
-        CC = (x & 0x01) != 0;
-        CV = CN != CC;
+        t |= isCC() ? 0x80 : 0;
+        flagN = flagZ = (byte) t;
+        flagC = (x & 0x01) << 8;
+        setV(V_SHIFT, flagC, 0, (byte) t);
         return (byte) t;
     }
 
     private void sta(short a, byte x) {
-        CN = x < 0;
-        CZ = x == 0;
-        CV = false;
+        flagN = flagZ = x;
+        flagV = V_CLEAR;
         store8_ext(a, x);
     }
 
     private byte sub(byte x, byte y) {
         int t = (x & 0xff) - (y & 0xff);
         byte tt = (byte) t;
-        CN = tt < 0;
-        CZ = tt == 0;
-        CV = (x > 0) & (y < 0) & CN || (x < 0) & (y > 0) & !CN;
-        CC = (t & 0x100) != 0;
+        flagN = flagZ = tt;
+        setV(V_SUB, x, y, tt);
+        flagC = t;
         return tt;
     }
 
     private byte sbc(byte x, byte y) {
-        int t = (x & 0xff) - (y & 0xff) - (CC ? 0x01 : 0x00);
+        int t = (x & 0xff) - (y & 0xff) - (isCC() ? 0x01 : 0x00);
         byte tt = (byte) t;
-        CN = tt < 0;
-        CZ = tt == 0;
-        CV = (x > 0) & (y < 0) & CN || (x < 0) & (y > 0) & !CN;
-        CC = (t & 0x100) != 0;
+        flagN = flagZ = tt;
+        setV(V_SUB, x, y, tt);
+        flagC = t;
         return tt;
     }
 
     private void tab() {
         B = A;
-        CN = B < 0;
-        CZ = B == 0;
-        CV = false;
+        flagN = flagZ = B;
+        flagV = V_CLEAR;
     }
 
     private void tba() {
         A = B;
-        CN = A < 0;
-        CZ = A == 0;
-        CV = false;
+        flagN = flagZ = A;
+        flagV = V_CLEAR;
     }
 
     private void tst(byte x) {
-        CN = x < 0;
-        CZ = x == 0;
-        CV = false;
-        CC = false;
+        flagN = flagZ = x;
+        flagV = V_CLEAR;
+        flagC = 0;
     }
 
     private void cpx(short x) {
         int t = (IX & 0xffff) - (x & 0xffff);
-        CN = (short) t < 0;
-        CZ = (short) t == 0;
-        CV = (IX > 0) & (x < 0) & CN || (IX < 0) & (x > 0) & !CN;
+        flagN = flagZ = (short) t;
+        setV(V_SUB, IX, x, (short) t);
     }
 
     private void dex() {
         IX--;
-        CZ = IX == 0;
+        flagZ = IX;
     }
 
     private void des() {
@@ -615,7 +748,7 @@ public final class MB8861 extends CPU {
 
     private void inx() {
         IX++;
-        CZ = IX == 0;
+        flagZ = IX;
     }
 
     private void ins() {
@@ -624,30 +757,26 @@ public final class MB8861 extends CPU {
 
     private void ldx(short a) {
         IX = a;
-        CN = IX < 0;
-        CZ = IX == 0;
-        CV = false;
+        flagN = flagZ = IX;
+        flagV = V_CLEAR;
     }
 
     private void lds(short a) {
         SP = a;
-        CN = (short) SP < 0;
-        CZ = (short) SP == 0;
-        CV = false;
+        flagN = flagZ = SP;
+        flagV = V_CLEAR;
     }
 
     private void stx(short a) {
         store16_ext(a, IX);
-        CN = IX < 0;
-        CZ = IX == 0;
-        CV = false;
+        flagN = flagZ = IX;
+        flagV = V_CLEAR;
     }
 
     private void sts(short a) {
         store16_ext(a, SP);
-        CN = IX < 0;
-        CZ = IX == 0;
-        CV = false;
+        flagN = flagZ = IX;
+        flagV = V_CLEAR;
     }
 
     private void txs() {
@@ -661,9 +790,43 @@ public final class MB8861 extends CPU {
     private void branch(byte offset, boolean condition) {
         if (condition) {
             PC = (short) (PC + offset);
+            if (offset < 0 && idleDetection) {
+                detectIdleLoop();
+            }
         }
     }
 
+    /*
+     * 後方分岐のたびに呼ばれ、ループの1周で状態が変化したかどうかを調べる。
+     * 前回の分岐から書き込みも値の変化しうる読み出しもなく、レジスタが同じであれば、
+     * 次の周回も同じ処理になるため、デバイスの次のイベントまでの周回を省略する。
+     */
+    private void detectIdleLoop() {
+        int head = PC & 0xffff;
+        long stores = m.getStoreCount();
+        long reads = m.getVolatileReadCount();
+        int ccr = conditionCodes();
+        if (head == idleHead && stores == idleStores && reads == idleReads
+                && A == idleA && B == idleB && IX == idleIX && SP == idleSP && ccr == idleCCR
+                && !hasPendingSignal()) {
+            long length = computer.clockCount - idleClock;
+            long limit = Math.min(executeEnd, computer.getNextDeviceEventClock());
+            long loops = length > 0 ? (limit - computer.clockCount - 1) / length : 0;
+            if (loops > 0) {
+                computer.clockCount += loops * length;
+            }
+        }
+        idleHead = head;
+        idleClock = computer.clockCount;
+        idleStores = stores;
+        idleReads = reads;
+        idleA = A;
+        idleB = B;
+        idleIX = IX;
+        idleSP = SP;
+        idleCCR = ccr;
+    }
+
     private void bsr(byte offset) {
         SP = (short) (SP - 2);
         store16_ext((short) (SP + 1), PC);
@@ -683,26 +846,38 @@ public final class MB8861 extends CPU {
     private void nop() {
     }
 
-    private void pushAllRegisters() {
+    /**
+     * 条件コードレジスタの値を返す。
+     */
+    public int getCCR() {
+        return conditionCodes();
+    }
+
+    private int conditionCodes() {
         int ccr = 0xc0;
-        if (CH) {
+        if (isCH()) {
             ccr |= 0x20;
         }
         if (CI) {
             ccr |= 0x10;
         }
-        if (CN) {
+        if (isCN()) {
             ccr |= 0x08;
         }
-        if (CZ) {
+        if (isCZ()) {
             ccr |= 0x04;
         }
-        if (CV) {
+        if (isCV()) {
             ccr |= 0x02;
         }
-        if (CC) {
+        if (isCC()) {
             ccr |= 0x01;
         }
+        return ccr;
+    }
+
+    private void pushAllRegisters() {
+        int ccr = conditionCodes();
         store16_ext((short) (SP - 1), PC);
         store16_ext((short) (SP - 3), IX);
         store8_ext((short) (SP - 4), A);
@@ -714,12 +889,12 @@ public final class MB8861 extends CPU {
     private void popAllRegisters() {
         SP = (short) (SP + 7);
         int ccr = (int) load8_ext((short) (SP - 6));
-        CH = (ccr & 0x20) != 0;
+        setCH((ccr & 0x20) != 0);
         CI = (ccr & 0x10) != 0;
-        CN = (ccr & 0x08) != 0;
-        CZ = (ccr & 0x04) != 0;
-        CV = (ccr & 0x02) != 0;
-        CC = (ccr & 0x01) != 0;
+        setCN((ccr & 0x08) != 0);
+        setCZ((ccr & 0x04) != 0);
+        setCV((ccr & 0x02) != 0);
+        setCC((ccr & 0x01) != 0);
         B = load8_ext((short) (SP - 5));
         A = load8_ext((short) (SP - 4));
         IX = load16_ext((short) (SP - 3));
@@ -747,7 +922,7 @@ public final class MB8861 extends CPU {
     }
 
     private void clc() {
-        CC = false;
+        flagC = 0;
     }
 
     private void cli() {
@@ -755,11 +930,11 @@ public final class MB8861 extends CPU {
     }
 
     private void clv() {
-        CV = false;
+        flagV = V_CLEAR;
     }
 
     private void sec() {
-        CC = true;
+        flagC = 0x100;
     }
 
     private void sei() {
@@ -767,38 +942,20 @@ public final class MB8861 extends CPU {
     }
 
     private void sev() {
-        CV = true;
+        flagV = V_SET;
     }
 
     private void tap() {
-        CH = (A & 0x20) != 0;
+        setCH((A & 0x20) != 0);
         CI = (A & 0x10) != 0;
-        CN = (A & 0x08) != 0;
-        CZ = (A & 0x04) != 0;
-        CV = (A & 0x02) != 0;
-        CC = (A & 0x01) != 0;
+        setCN((A & 0x08) != 0);
+        setCZ((A & 0x04) != 0);
+        setCV((A & 0x02) != 0);
+        setCC((A & 0x01) != 0);
     }
 
     private void tpa() {
-        A = (byte) 0xc0;
-        if (CH) {
-            A |= 0x20;
-        }
-        if (CI) {
-            A |= 0x10;
-        }
-        if (CN) {
-            A |= 0x08;
-        }
-        if (CZ) {
-            A |= 0x04;
-        }
-        if (CV) {
-            A |= 0x02;
-        }
-        if (CC) {
-            A |= 0x01;
-        }
+        A = (byte) conditionCodes();
     }
 
     private byte fetchOp() {
@@ -815,64 +972,538 @@ public final class MB8861 extends CPU {
         return (short) ((op1 << 8) + op2);
     }
 
+    /*
+     * 命令長に応じてオペランドをまとめて読み出す。
+     * 2バイトのオペランドは先に読んだバイトを上位とする。
+     */
+    int fetchOperands(int opcode) {
+        switch (instructionLength(opcode)) {
+        case 1:
+            return 0;
+        case 2:
+            return fetchOperand1() & 0xff;
+        default:
+            return fetchOperand2() & 0xffff;
+        }
+    }
+
+    /*
+     * 命令デコード用のハンドラテーブル
+     * オペコードをインデックスとして命令の処理とクロック数を引く。
+     * ハンドラにはfetchOperands()で読み出したオペランドを渡す。
+     */
+    interface InstructionHandler {
+        public void execute(MB8861 c, int operand);
+    }
+
+    final static InstructionHandler[] HANDLERS = new InstructionHandler[256];
+    final static int[] CYCLES = new int[256];
+    final static int[] MODES = new int[256];
+
+    private static void define(byte opcode, int mode, int cycles, InstructionHandler handler) {
+        HANDLERS[opcode & 0xff] = handler;
+        MODES[opcode & 0xff] = mode;
+        CYCLES[opcode & 0xff] = cycles;
+    }
+
+    /**
+     * 命令長(オペコードを含むバイト数)を返す。
+     *
+     * @param opcode オペコード
+     * @return 命令長
+     */
+    static int instructionLength(int opcode) {
+        switch (MODES[opcode & 0xff]) {
+        case MODE_IMPLIED:
+            return 1;
+        case MODE_IMMEDIATE16:
+        case MODE_EXTENDED:
+        case MODE_IMMEDIATE_INDEXED:
+            return 3;
+        default:
+            return 2;
+        }
+    }
+
+    static {
+        // 未定義命令はNOPとして1クロックで実行する。
+        for (int i = 0; i < 256; i++) {
+            HANDLERS[i] = (c, operand) -> c.nop();
+            MODES[i] = MODE_IMPLIED;
+            CYCLES[i] = 1;
+        }
+        define(OP_ABA_IMP, MODE_IMPLIED, 2, (c, operand) -> c.A = c.add(c.A, c.B));
+        define(OP_ADDA_IMM, MODE_IMMEDIATE, 2, (c, operand) -> c.A = c.add(c.A, (byte) operand));
+        define(OP_ADDA_DIR, MODE_DIRECT, 3, (c, operand) -> c.A = c.add(c.A, c.load8_dir((byte) operand)));
+        define(OP_ADDA_IND, MODE_INDEXED, 5, (c, operand) -> c.A = c.add(c.A, c.load8_ind((byte) operand)));
+        define(OP_ADDA_EXT, MODE_EXTENDED, 4, (c, operand) -> c.A = c.add(c.A, c.load8_ext((short) operand)));
+        define(OP_ADDB_IMM, MODE_IMMEDIATE, 2, (c, operand) -> c.B = c.add(c.B, (byte) operand));
+        define(OP_ADDB_DIR, MODE_DIRECT, 3, (c, operand) -> c.B = c.add(c.B, c.load8_dir((byte) operand)));
+        define(OP_ADDB_IND, MODE_INDEXED, 5, (c, operand) -> c.B = c.add(c.B, c.load8_ind((byte) operand)));
+        define(OP_ADDB_EXT, MODE_EXTENDED, 4, (c, operand) -> c.B = c.add(c.B, c.load8_ext((short) operand)));
+        define(OP_ADCA_IMM, MODE_IMMEDIATE, 2, (c, operand) -> c.A = c.adc(c.A, (byte) operand));
+        define(OP_ADCA_DIR, MODE_DIRECT, 3, (c, operand) -> c.A = c.adc(c.A, c.load8_dir((byte) operand)));
+        define(OP_ADCA_IND, MODE_INDEXED, 5, (c, operand) -> c.A = c.adc(c.A, c.load8_ind((byte) operand)));
+        define(OP_ADCA_EXT, MODE_EXTENDED, 4, (c, operand) -> c.A = c.adc(c.A, c.load8_ext((short) operand)));
+        define(OP_ADCB_IMM, MODE_IMMEDIATE, 2, (c, operand) -> c.B = c.adc(c.B, (byte) operand));
+        define(OP_ADCB_DIR, MODE_DIRECT, 3, (c, operand) -> c.B = c.adc(c.B, c.load8_dir((byte) operand)));
+        define(OP_ADCB_IND, MODE_INDEXED, 5, (c, operand) -> c.B = c.adc(c.B, c.load8_ind((byte) operand)));
+        define(OP_ADCB_EXT, MODE_EXTENDED, 4, (c, operand) -> c.B = c.adc(c.B, c.load8_ext((short) operand)));
+        define(OP_ANDA_IMM, MODE_IMMEDIATE, 2, (c, operand) -> c.A = c.and(c.A, (byte) operand));
+        define(OP_ANDA_DIR, MODE_DIRECT, 3, (c, operand) -> c.A = c.and(c.A, c.load8_dir((byte) operand)));
+        define(OP_ANDA_IND, MODE_INDEXED, 5, (c, operand) -> c.A = c.and(c.A, c.load8_ind((byte) operand)));
+        define(OP_ANDA_EXT, MODE_EXTENDED, 4, (c, operand) -> c.A = c.and(c.A, c.load8_ext((short) operand)));
+        define(OP_ANDB_IMM, MODE_IMMEDIATE, 2, (c, operand) -> c.B = c.and(c.B, (byte) operand));
+        define(OP_ANDB_DIR, MODE_DIRECT, 3, (c, operand) -> c.B = c.and(c.B, c.load8_dir((byte) operand)));
+        define(OP_ANDB_IND, MODE_INDEXED, 5, (c, operand) -> c.B = c.and(c.B, c.load8_ind((byte) operand)));
+        define(OP_ANDB_EXT, MODE_EXTENDED, 4, (c, operand) -> c.B = c.and(c.B, c.load8_ext((short) operand)));
+        define(OP_ASLA_IMP, MODE_IMPLIED, 2, (c, operand) -> c.A = c.asl(c.A));
+        define(OP_ASLB_IMP, MODE_IMPLIED, 2, (c, operand) -> c.B = c.asl(c.B));
+        define(OP_ASRA_IMP, MODE_IMPLIED, 2, (c, operand) -> c.A = c.asr(c.A));
+        define(OP_ASRB_IMP, MODE_IMPLIED, 2, (c, operand) -> c.B = c.asr(c.B));
+        define(OP_BITA_IMM, MODE_IMMEDIATE, 2, (c, operand) -> c.bit(c.A, (byte) operand));
+        define(OP_BITA_DIR, MODE_DIRECT, 3, (c, operand) -> c.bit(c.A, c.load8_dir((byte) operand)));
+        define(OP_BITA_IND, MODE_INDEXED, 5, (c, operand) -> c.bit(c.A, c.load8_ind((byte) operand)));
+        define(OP_BITA_EXT, MODE_EXTENDED, 4, (c, operand) -> c.bit(c.A, c.load8_ext((short) operand)));
+        define(OP_BITB_IMM, MODE_IMMEDIATE, 2, (c, operand) -> c.bit(c.B, (byte) operand));
+        define(OP_BITB_DIR, MODE_DIRECT, 3, (c, operand) -> c.bit(c.B, c.load8_dir((byte) operand)));
+        define(OP_BITB_IND, MODE_INDEXED, 5, (c, operand) -> c.bit(c.B, c.load8_ind((byte) operand)));
+        define(OP_BITB_EXT, MODE_EXTENDED, 4, (c, operand) -> c.bit(c.B, c.load8_ext((short) operand)));
+        define(OP_CBA_IMP, MODE_IMPLIED, 2, (c, operand) -> c.cmp(c.A, c.B));
+        define(OP_CLRA_IMP, MODE_IMPLIED, 2, (c, operand) -> c.A = c.clr());
+        define(OP_CLRB_IMP, MODE_IMPLIED, 2, (c, operand) -> c.B = c.clr());
+        define(OP_CMPA_IMM, MODE_IMMEDIATE, 2, (c, operand) -> c.cmp(c.A, (byte) operand));
+        define(OP_CMPA_DIR, MODE_DIRECT, 3, (c, operand) -> c.cmp(c.A, c.load8_dir((byte) operand)));
+        define(OP_CMPA_IND, MODE_INDEXED, 5, (c, operand) -> c.cmp(c.A, c.load8_ind((byte) operand)));
+        define(OP_CMPA_EXT, MODE_EXTENDED, 4, (c, operand) -> c.cmp(c.A, c.load8_ext((short) operand)));
+        define(OP_CMPB_IMM, MODE_IMMEDIATE, 2, (c, operand) -> c.cmp(c.B, (byte) operand));
+        define(OP_CMPB_DIR, MODE_DIRECT, 3, (c, operand) -> c.cmp(c.B, c.load8_dir((byte) operand)));
+        define(OP_CMPB_IND, MODE_INDEXED, 5, (c, operand) -> c.cmp(c.B, c.load8_ind((byte) operand)));
+        define(OP_CMPB_EXT, MODE_EXTENDED, 4, (c, operand) -> c.cmp(c.B, c.load8_ext((short) operand)));
+        define(OP_COMA_IMP, MODE_IMPLIED, 2, (c, operand) -> c.A = c.com(c.A));
+        define(OP_COMB_IMP, MODE_IMPLIED, 2, (c, operand) -> c.B = c.com(c.B));
+        define(OP_DAA_IMP, MODE_IMPLIED, 2, (c, operand) -> c.daa());
+        define(OP_DECA_IMP, MODE_IMPLIED, 2, (c, operand) -> c.A = c.dec(c.A));
+        define(OP_DECB_IMP, MODE_IMPLIED, 2, (c, operand) -> c.B = c.dec(c.B));
+        define(OP_EORA_IMM, MODE_IMMEDIATE, 2, (c, operand) -> c.A = c.eor(c.A, (byte) operand));
+        define(OP_EORA_DIR, MODE_DIRECT, 3, (c, operand) -> c.A = c.eor(c.A, c.load8_dir((byte) operand)));
+        define(OP_EORA_IND, MODE_INDEXED, 5, (c, operand) -> c.A = c.eor(c.A, c.load8_ind((byte) operand)));
+        define(OP_EORA_EXT, MODE_EXTENDED, 4, (c, operand) -> c.A = c.eor(c.A, c.load8_ext((short) operand)));
+        define(OP_EORB_IMM, MODE_IMMEDIATE, 2, (c, operand) -> c.B = c.eor(c.B, (byte) operand));
+        define(OP_EORB_DIR, MODE_DIRECT, 3, (c, operand) -> c.B = c.eor(c.B, c.load8_dir((byte) operand)));
+        define(OP_EORB_IND, MODE_INDEXED, 5, (c, operand) -> c.B = c.eor(c.B, c.load8_ind((byte) operand)));
+        define(OP_EORB_EXT, MODE_EXTENDED, 4, (c, operand) -> c.B = c.eor(c.B, c.load8_ext((short) operand)));
+        define(OP_INCA_IMP, MODE_IMPLIED, 2, (c, operand) -> c.A = c.inc(c.A));
+        define(OP_INCB_IMP, MODE_IMPLIED, 2, (c, operand) -> c.B = c.inc(c.B));
+        define(OP_LDAA_IMM, MODE_IMMEDIATE, 2, (c, operand) -> c.A = c.lda((byte) operand));
+        define(OP_LDAA_DIR, MODE_DIRECT, 3, (c, operand) -> c.A = c.lda(c.load8_dir((byte) operand)));
+        define(OP_LDAA_IND, MODE_INDEXED, 5, (c, operand) -> c.A = c.lda(c.load8_ind((byte) operand)));
+        define(OP_LDAA_EXT, MODE_EXTENDED, 4, (c, operand) -> c.A = c.lda(c.load8_ext((short) operand)));
+        define(OP_LDAB_IMM, MODE_IMMEDIATE, 2, (c, operand) -> c.B = c.lda((byte) operand));
+        define(OP_LDAB_DIR, MODE_DIRECT, 3, (c, operand) -> c.B = c.lda(c.load8_dir((byte) operand)));
+        define(OP_LDAB_IND, MODE_INDEXED, 5, (c, operand) -> c.B = c.lda(c.load8_ind((byte) operand)));
+        define(OP_LDAB_EXT, MODE_EXTENDED, 4, (c, operand) -> c.B = c.lda(c.load8_ext((short) operand)));
+        define(OP_LSRA_IMP, MODE_IMPLIED, 2, (c, operand) -> c.A = c.lsr(c.A));
+        define(OP_LSRB_IMP, MODE_IMPLIED, 2, (c, operand) -> c.B = c.lsr(c.B));
+        define(OP_NEGA_IMP, MODE_IMPLIED, 2, (c, operand) -> c.A = c.neg(c.A));
+        define(OP_NEGB_IMP, MODE_IMPLIED, 2, (c, operand) -> c.B = c.neg(c.B));
+        define(OP_ORAA_IMM, MODE_IMMEDIATE, 2, (c, operand) -> c.A = c.ora(c.A, (byte) operand));
+        define(OP_ORAA_DIR, MODE_DIRECT, 3, (c, operand) -> c.A = c.ora(c.A, c.load8_dir((byte) operand)));
+        define(OP_ORAA_IND, MODE_INDEXED, 5, (c, operand) -> c.A = c.ora(c.A, c.load8_ind((byte) operand)));
+        define(OP_ORAA_EXT, MODE_EXTENDED, 4, (c, operand) -> c.A = c.ora(c.A, c.load8_ext((short) operand)));
+        define(OP_ORAB_IMM, MODE_IMMEDIATE, 2, (c, operand) -> c.B = c.ora(c.B, (byte) operand));
+        define(OP_ORAB_DIR, MODE_DIRECT, 3, (c, operand) -> c.B = c.ora(c.B, c.load8_dir((byte) operand)));
+        define(OP_ORAB_IND, MODE_INDEXED, 5, (c, operand) -> c.B = c.ora(c.B, c.load8_ind((byte) operand)));
+        define(OP_ORAB_EXT, MODE_EXTENDED, 4, (c, operand) -> c.B = c.add(c.B, c.load8_ext((short) operand)));
+        define(OP_PSHA_IMP, MODE_IMPLIED, 4, (c, operand) -> c.psh(c.A));
+        define(OP_PSHB_IMP, MODE_IMPLIED, 4, (c, operand) -> c.psh(c.B));
+        define(OP_PULA_IMP, MODE_IMPLIED, 4, (c, operand) -> c.A = c.pul());
+        define(OP_PULB_IMP, MODE_IMPLIED, 4, (c, operand) -> c.B = c.pul());
+        define(OP_ROLA_IMP, MODE_IMPLIED, 2, (c, operand) -> c.A = c.rol(c.A));
+        define(OP_ROLB_IMP, MODE_IMPLIED, 2, (c, operand) -> c.B = c.rol(c.B));
+        define(OP_RORA_IMP, MODE_IMPLIED, 2, (c, operand) -> c.A = c.ror(c.A));
+        define(OP_RORB_IMP, MODE_IMPLIED, 2, (c, operand) -> c.B = c.ror(c.B));
+        define(OP_STAA_DIR, MODE_DIRECT, 4, (c, operand) -> c.sta((short) ((byte) operand & 0xff), c.A));
+        define(OP_STAA_IND, MODE_INDEXED, 6, (c, operand) -> c.sta((short) ((c.IX & 0xffff) + ((byte) operand & 0xff)), c.A));
+        define(OP_STAA_EXT, MODE_EXTENDED, 5, (c, operand) -> c.sta((short) operand, c.A));
+        define(OP_STAB_DIR, MODE_DIRECT, 4, (c, operand) -> c.sta((short) ((byte) operand & 0xff), c.B));
+        define(OP_STAB_IND, MODE_INDEXED, 6, (c, operand) -> c.sta((short) ((c.IX & 0xffff) + ((byte) operand & 0xff)), c.B));
+        define(OP_STAB_EXT, MODE_EXTENDED, 5, (c, operand) -> c.sta((short) operand, c.B));
+        define(OP_SBA_IMP, MODE_IMPLIED, 2, (c, operand) -> c.A = c.sub(c.A, c.B));
+        define(OP_SUBA_IMM, MODE_IMMEDIATE, 2, (c, operand) -> c.A = c.sub(c.A, (byte) operand));
+        define(OP_SUBA_DIR, MODE_DIRECT, 3, (c, operand) -> c.A = c.sub(c.A, c.load8_dir((byte) operand)));
+        define(OP_SUBA_IND, MODE_INDEXED, 5, (c, operand) -> c.A = c.sub(c.A, c.load8_ind((byte) operand)));
+        define(OP_SUBA_EXT, MODE_EXTENDED, 4, (c, operand) -> c.A = c.sub(c.A, c.load8_ext((short) operand)));
+        define(OP_SUBB_IMM, MODE_IMMEDIATE, 2, (c, operand) -> c.B = c.sub(c.B, (byte) operand));
+        define(OP_SUBB_DIR, MODE_DIRECT, 3, (c, operand) -> c.B = c.sub(c.B, c.load8_dir((byte) operand)));
+        define(OP_SUBB_IND, MODE_INDEXED, 5, (c, operand) -> c.B = c.sub(c.B, c.load8_ind((byte) operand)));
+        define(OP_SUBB_EXT, MODE_EXTENDED, 4, (c, operand) -> c.B = c.sub(c.B, c.load8_ext((short) operand)));
+        define(OP_SBCA_IMM, MODE_IMMEDIATE, 2, (c, operand) -> c.A = c.sbc(c.A, (byte) operand));
+        define(OP_SBCA_DIR, MODE_DIRECT, 3, (c, operand) -> c.A = c.sbc(c.A, c.load8_dir((byte) operand)));
+        define(OP_SBCA_IND, MODE_INDEXED, 5, (c, operand) -> c.A = c.sbc(c.A, c.load8_ind((byte) operand)));
+        define(OP_SBCA_EXT, MODE_EXTENDED, 4, (c, operand) -> c.A = c.sbc(c.A, c.load8_ext((short) operand)));
+        define(OP_SBCB_IMM, MODE_IMMEDIATE, 2, (c, operand) -> c.B = c.sbc(c.B, (byte) operand));
+        define(OP_SBCB_DIR, MODE_DIRECT, 3, (c, operand) -> c.B = c.sbc(c.B, c.load8_dir((byte) operand)));
+        define(OP_SBCB_IND, MODE_INDEXED, 5, (c, operand) -> c.B = c.sbc(c.B, c.load8_ind((byte) operand)));
+        define(OP_SBCB_EXT, MODE_EXTENDED, 4, (c, operand) -> c.B = c.sbc(c.B, c.load8_ext((short) operand)));
+        define(OP_TAB_IMP, MODE_IMPLIED, 2, (c, operand) -> c.tab());
+        define(OP_TBA_IMP, MODE_IMPLIED, 2, (c, operand) -> c.tba());
+        define(OP_TSTA_IMP, MODE_IMPLIED, 2, (c, operand) -> c.tst(c.A));
+        define(OP_TSTB_IMP, MODE_IMPLIED, 2, (c, operand) -> c.tst(c.B));
+        define(OP_CPX_IMM, MODE_IMMEDIATE16, 3, (c, operand) -> c.cpx((short) operand));
+        define(OP_CPX_DIR, MODE_DIRECT, 4, (c, operand) -> c.cpx(c.load16_dir((byte) operand)));
+        define(OP_CPX_IND, MODE_INDEXED, 6, (c, operand) -> c.cpx(c.load16_ind((byte) operand)));
+        define(OP_CPX_EXT, MODE_EXTENDED, 5, (c, operand) -> c.cpx(c.load16_ext((short) operand)));
+        define(OP_DEX_IMP, MODE_IMPLIED, 4, (c, operand) -> c.dex());
+        define(OP_DES_IMP, MODE_IMPLIED, 4, (c, operand) -> c.des());
+        define(OP_INX_IMP, MODE_IMPLIED, 4, (c, operand) -> c.inx());
+        define(OP_INS_IMP, MODE_IMPLIED, 4, (c, operand) -> c.ins());
+        define(OP_LDX_IMM, MODE_IMMEDIATE16, 3, (c, operand) -> c.ldx((short) operand));
+        define(OP_LDX_DIR, MODE_DIRECT, 4, (c, operand) -> c.ldx(c.load16_dir((byte) operand)));
+        define(OP_LDX_IND, MODE_INDEXED, 6, (c, operand) -> c.ldx(c.load16_ind((byte) operand)));
+        define(OP_LDX_EXT, MODE_EXTENDED, 5, (c, operand) -> c.ldx(c.load16_ext((short) operand)));
+        define(OP_LDS_IMM, MODE_IMMEDIATE16, 3, (c, operand) -> c.lds((short) operand));
+        define(OP_LDS_DIR, MODE_DIRECT, 4, (c, operand) -> c.lds(c.load16_dir((byte) operand)));
+        define(OP_LDS_IND, MODE_INDEXED, 6, (c, operand) -> c.lds(c.load16_ind((byte) operand)));
+        define(OP_LDS_EXT, MODE_EXTENDED, 5, (c, operand) -> c.lds(c.load16_ext((short) operand)));
+        define(OP_STX_DIR, MODE_DIRECT, 5, (c, operand) -> c.stx((short) ((byte) operand & 0xff)));
+        define(OP_STX_IND, MODE_INDEXED, 7, (c, operand) -> c.stx((short) ((c.IX & 0xffff) + ((byte) operand & 0xff))));
+        define(OP_STX_EXT, MODE_EXTENDED, 6, (c, operand) -> c.stx((short) operand));
+        define(OP_STS_DIR, MODE_DIRECT, 5, (c, operand) -> c.sts((short) ((byte) operand & 0xff)));
+        define(OP_STS_IND, MODE_INDEXED, 7, (c, operand) -> c.sts((short) ((c.IX & 0xffff) + ((byte) operand & 0xff))));
+        define(OP_STS_EXT, MODE_EXTENDED, 6, (c, operand) -> c.sts((short) operand));
+        define(OP_TXS_IMP, MODE_IMPLIED, 4, (c, operand) -> c.txs());
+        define(OP_TSX_IMP, MODE_IMPLIED, 4, (c, operand) -> c.tsx());
+        define(OP_ASL_IND, MODE_INDEXED, 7, (c, operand) -> {
+            byte offset = (byte) operand;
+            c.store8_ind(offset, c.asl(c.load8_ind(offset)));
+        });
+        define(OP_ASL_EXT, MODE_EXTENDED, 6, (c, operand) -> {
+            short addr = (short) operand;
+            c.store8_ext(addr, c.asl(c.load8_ext(addr)));
+        });
+        define(OP_ASR_IND, MODE_INDEXED, 7, (c, operand) -> {
+            byte offset = (byte) operand;
+            c.store8_ind(offset, c.asr(c.load8_ind(offset)));
+        });
+        define(OP_ASR_EXT, MODE_EXTENDED, 6, (c, operand) -> {
+            short addr = (short) operand;
+            c.store8_ext(addr, c.asr(c.load8_ext(addr)));
+        });
+        define(OP_CLR_IND, MODE_INDEXED, 7, (c, operand) -> c.store8_ind((byte) operand, c.clr()));
+        define(OP_CLR_EXT, MODE_EXTENDED, 6, (c, operand) -> c.store8_ext((short) operand, c.clr()));
+        define(OP_COM_IND, MODE_INDEXED, 7, (c, operand) -> {
+            byte offset = (byte) operand;
+            c.store8_ind(offset, c.com(c.load8_ind(offset)));
+        });
+        define(OP_COM_EXT, MODE_EXTENDED, 6, (c, operand) -> {
+            short addr = (short) operand;
+            c.store8_ext(addr, c.com(c.load8_ext(addr)));
+        });
+        define(OP_DEC_IND, MODE_INDEXED, 7, (c, operand) -> {
+            byte offset = (byte) operand;
+            c.store8_ind(offset, c.dec(c.load8_ind(offset)));
+        });
+        define(OP_DEC_EXT, MODE_EXTENDED, 6, (c, operand) -> {
+            short addr = (short) operand;
+            c.store8_ext(addr, c.dec(c.load8_ext(addr)));
+        });
+        define(OP_INC_IND, MODE_INDEXED, 7, (c, operand) -> {
+            byte offset = (byte) operand;
+            c.store8_ind(offset, c.inc(c.load8_ind(offset)));
+        });
+        define(OP_INC_EXT, MODE_EXTENDED, 6, (c, operand) -> {
+            short addr = (short) operand;
+            c.store8_ext(addr, c.inc(c.load8_ext(addr)));
+        });
+        define(OP_LSR_IND, MODE_INDEXED, 7, (c, operand) -> {
+            byte offset = (byte) operand;
+            c.store8_ind(offset, c.lsr(c.load8_ind(offset)));
+        });
+        define(OP_LSR_EXT, MODE_EXTENDED, 6, (c, operand) -> {
+            short addr = (short) operand;
+            c.store8_ext(addr, c.lsr(c.load8_ext(addr)));
+        });
+        define(OP_NEG_IND, MODE_INDEXED, 7, (c, operand) -> {
+            byte offset = (byte) operand;
+            c.store8_ind(offset, c.neg(c.load8_ind(offset)));
+        });
+        define(OP_NEG_EXT, MODE_EXTENDED, 6, (c, operand) -> {
+            short addr = (short) operand;
+            c.store8_ext(addr, c.neg(c.load8_ext(addr)));
+        });
+        define(OP_ROL_IND, MODE_INDEXED, 7, (c, operand) -> {
+            byte offset = (byte) operand;
+            c.store8_ind(offset, c.rol(c.load8_ind(offset)));
+        });
+        define(OP_ROL_EXT, MODE_EXTENDED, 6, (c, operand) -> {
+            short addr = (short) operand;
+            c.store8_ext(addr, c.rol(c.load8_ext(addr)));
+        });
+        define(OP_ROR_IND, MODE_INDEXED, 7, (c, operand) -> {
+            byte offset = (byte) operand;
+            c.store8_ind(offset, c.ror(c.load8_ind(offset)));
+        });
+        define(OP_ROR_EXT, MODE_EXTENDED, 6, (c, operand) -> {
+            short addr = (short) operand;
+            c.store8_ext(addr, c.ror(c.load8_ext(addr)));
+        });
+        define(OP_TST_IND, MODE_INDEXED, 7, (c, operand) -> c.tst(c.load8_ind((byte) operand)));
+        define(OP_TST_EXT, MODE_EXTENDED, 6, (c, operand) -> c.tst(c.load8_ext((short) operand)));
+        define(OP_BRA_REL, MODE_RELATIVE, 4, (c, operand) -> c.branch((byte) operand, true));
+        define(OP_BCC_REL, MODE_RELATIVE, 4, (c, operand) -> c.branch((byte) operand, !c.isCC()));
+        define(OP_BCS_REL, MODE_RELATIVE, 4, (c, operand) -> c.branch((byte) operand, c.isCC()));
+        define(OP_BEQ_REL, MODE_RELATIVE, 4, (c, operand) -> c.branch((byte) operand, c.isCZ()));
+        define(OP_BGE_REL, MODE_RELATIVE, 4, (c, operand) -> c.branch((byte) operand, !(c.isCN() ^ c.isCV())));
+        define(OP_BGT_REL, MODE_RELATIVE, 4, (c, operand) -> c.branch((byte) operand, !(c.isCZ() | (c.isCN() ^ c.isCV()))));
+        define(OP_BHI_REL, MODE_RELATIVE, 4, (c, operand) -> c.branch((byte) operand, !(c.isCC() | c.isCZ())));
+        define(OP_BLE_REL, MODE_RELATIVE, 4, (c, operand) -> c.branch((byte) operand, c.isCZ() | (c.isCN() ^ c.isCV())));
+        define(OP_BLS_REL, MODE_RELATIVE, 4, (c, operand) -> c.branch((byte) operand, c.isCC() | c.isCZ()));
+        define(OP_BLT_REL, MODE_RELATIVE, 4, (c, operand) -> c.branch((byte) operand, c.isCN() ^ c.isCV()));
+        define(OP_BMI_REL, MODE_RELATIVE, 4, (c, operand) -> c.branch((byte) operand, c.isCN()));
+        define(OP_BNE_REL, MODE_RELATIVE, 4, (c, operand) -> c.branch((byte) operand, !c.isCZ()));
+        define(OP_BVC_REL, MODE_RELATIVE, 4, (c, operand) -> c.branch((byte) operand, !c.isCV()));
+        define(OP_BVS_REL, MODE_RELATIVE, 4, (c, operand) -> c.branch((byte) operand, c.isCV()));
+        define(OP_BPL_REL, MODE_RELATIVE, 4, (c, operand) -> c.branch((byte) operand, !c.isCN()));
+        define(OP_BSR_REL, MODE_RELATIVE, 8, (c, operand) -> c.bsr((byte) operand));
+        define(OP_JMP_IND, MODE_INDEXED, 4, (c, operand) -> c.jump((short) ((c.IX & 0xffff) + ((byte) operand & 0xff))));
+        define(OP_JMP_EXT, MODE_EXTENDED, 3, (c, operand) -> c.jump((short) operand));
+        define(OP_JSR_IND, MODE_INDEXED, 8, (c, operand) -> c.jsr((short) ((c.IX & 0xffff) + ((byte) operand & 0xff))));
+        define(OP_JSR_EXT, MODE_EXTENDED, 9, (c, operand) -> c.jsr((short) operand));
+        define(OP_NOP_IMP, MODE_IMPLIED, 2, (c, operand) -> c.nop());
+        define(OP_RTI_IMP, MODE_IMPLIED, 10, (c, operand) -> c.rti());
+        define(OP_RTS_IMP, MODE_IMPLIED, 5, (c, operand) -> c.rts());
+        define(OP_SWI_IMP, MODE_IMPLIED, 12, (c, operand) -> c.swi());
+        define(OP_WAI_IMP, MODE_IMPLIED, 9, (c, operand) -> c.wai());
+        define(OP_CLC_IMP, MODE_IMPLIED, 2, (c, operand) -> c.clc());
+        define(OP_CLI_IMP, MODE_IMPLIED, 2, (c, operand) -> c.cli());
+        define(OP_CLV_IMP, MODE_IMPLIED, 2, (c, operand) -> c.clv());
+        define(OP_SEC_IMP, MODE_IMPLIED, 2, (c, operand) -> c.sec());
+        define(OP_SEI_IMP, MODE_IMPLIED, 2, (c, operand) -> c.sei());
+        define(OP_SEV_IMP, MODE_IMPLIED, 2, (c, operand) -> c.sev());
+        define(OP_TAP_IMP, MODE_IMPLIED, 2, (c, operand) -> c.tap());
+        define(OP_TPA_IMP, MODE_IMPLIED, 2, (c, operand) -> c.tpa());
+        // 以下MB8861の拡張命令
+        define(OP_NIM_IND, MODE_IMMEDIATE_INDEXED, 8, (c, operand) -> {
+            byte value = (byte) (operand >> 8);
+            byte offset = (byte) operand;
+            c.store8_ind(offset, c.nim(value, c.load8_ind(offset)));
+        });
+        define(OP_OIM_IND, MODE_IMMEDIATE_INDEXED, 8, (c, operand) -> {
+            byte value = (byte) (operand >> 8);
+            byte offset = (byte) operand;
+            c.store8_ind(offset, c.oim(value, c.load8_ind(offset)));
+        });
+        define(OP_XIM_IND, MODE_IMMEDIATE_INDEXED, 8, (c, operand) -> {
+            byte value = (byte) (operand >> 8);
+            byte offset = (byte) operand;
+            c.store8_ind(offset, c.xim(value, c.load8_ind(offset)));
+        });
+        define(OP_TMM_IND, MODE_IMMEDIATE_INDEXED, 7, (c, operand) -> c.tmm((byte) (operand >> 8), c.load8_ind((byte) operand)));
+        define(OP_ADX_IMM, MODE_IMMEDIATE, 3, (c, operand) -> c.IX = c.add16(c.IX, (short) ((byte) operand & 0xff)));
+        define(OP_ADX_EXT, MODE_EXTENDED, 7, (c, operand) -> c.IX = c.add16(c.IX, c.load16_ext((short) operand)));
+    }
+
+    /**
+     * 命令フェッチ前にリセット、ホールト、割り込みの各信号を処理する。
+     *
+     * @return 処理結果 (SIGNAL_NONE, SIGNAL_SKIP, SIGNAL_RESET)
+     */
+    private int processSignals() {
+        if (resetStatus) {
+            resetStatus = false;
+            fetchWai = false;
+            PC = load16_ext(VECTOR_RESTART);
+            computer.clockCount = 0;
+            idleHead = -1;
+            return SIGNAL_RESET;
+        }
+        if (haltStatus) {
+            haltProcessed = true;
+            return SIGNAL_SKIP;
+        }
+        if (haltProcessed) {
+            haltProcessed = false;
+        }
+        else {
+            if (fetchWai) {
+                if (nmiStatus) {
+                    nmiStatus = false;
+                    fetchWai = false;
+                    pushAllRegisters();
+                    PC = m.load16(VECTOR_NMI);
+                    computer.clockCount += 12;
+                }
+                if (irqStatus && !CI) {
+                    irqStatus = false;
+                    fetchWai = false;
+                    pushAllRegisters();
+                    PC = m.load16(VECTOR_IRQ);
+                    computer.clockCount += 12;
+                }
+                computer.clockCount++;
+                if (fetchWai && idleDetection && computer.clockCount < executeEnd) {
+                    // 割り込みを待つ間は実行の終わりまでクロックを進める。
+                    computer.clockCount = executeEnd;
+                }
+                return SIGNAL_SKIP;
+            }
+            else {
+                if (nmiStatus) {
+                    nmiStatus = false;
+                    pushAllRegisters();
+                    PC = m.load16(VECTOR_NMI);
+                    computer.clockCount += 12;
+                    return SIGNAL_SKIP;
+                }
+                if (irqStatus && !CI) {
+                    irqStatus = false;
+                    pushAllRegisters();
+                    PC = m.load16(VECTOR_IRQ);
+                    computer.clockCount += 12;
+                    return SIGNAL_SKIP;
+                }
+            }
+        }
+        return SIGNAL_NONE;
+    }
+
     @Override
     public long execute(long clocks) {
+        executeEnd = computer.clockCount + clocks;
+        switch (engine) {
+        case ENGINE_TABLE:
+            return executeByTable(clocks);
+        case ENGINE_JIT:
+            return executeByCompiler(clocks);
+        case ENGINE_PREDECODE:
+            return executeByDecodeCache(clocks);
+        default:
+            return executeBySwitch(clocks);
+        }
+    }
+
+    /*
+     * ハンドラテーブルを引いて命令を実行する。
+     */
+    private long executeByTable(long clocks) {
         long initial_clock;
 
         initial_clock = computer.clockCount;
         while (computer.clockCount < initial_clock + clocks) {
-            byte offset;
-            byte value;
-            short addr;
-            if (resetStatus) {
-                resetStatus = false;
-                fetchWai = false;
-                PC = load16_ext(VECTOR_RESTART);
-                computer.clockCount = 0;
+            int signal = processSignals();
+            if (signal == SIGNAL_RESET) {
+                return 0;
+            }
+            else if (signal == SIGNAL_SKIP) {
+                continue;
+            }
+
+            int opcode = fetchOp() & 0xff;
+            HANDLERS[opcode].execute(this, fetchOperands(opcode));
+            computer.clockCount += CYCLES[opcode];
+        }
+        return computer.clockCount - (initial_clock + clocks);
+    }
+
+    /*
+     * 頻繁に実行される基本ブロックをコンパイルして実行する。
+     * ブロックの全命令が指定クロック内に開始できる場合だけコンパイル済みコードを使い、
+     * それ以外はハンドラテーブルで1命令ずつ実行する。
+     */
+    private long executeByCompiler(long clocks) {
+        long initial_clock;
+
+        initial_clock = computer.clockCount;
+        while (computer.clockCount < initial_clock + clocks) {
+            int signal = processSignals();
+            if (signal == SIGNAL_RESET) {
+                compiler.flush();
                 return 0;
             }
-            if (haltStatus) {
-                haltProcessed = true;
+            else if (signal == SIGNAL_SKIP) {
                 continue;
             }
-            if (haltProcessed) {
-                haltProcessed = false;
+
+            MB8861Compiler.CompiledBlock block = compiler.lookup(PC & 0xffff);
+            if (block != null && computer.clockCount + block.leadingCycles < initial_clock + clocks) {
+                codeModified = false;
+                block.code.run(this);
+                continue;
+            }
+            int opcode = fetchOp() & 0xff;
+            HANDLERS[opcode].execute(this, fetchOperands(opcode));
+            computer.clockCount += CYCLES[opcode];
+        }
+        return computer.clockCount - (initial_clock + clocks);
+    }
+
+    /*
+     * デコード済み命令キャッシュを引いて命令を実行する。
+     * RAMとROM以外の領域にある命令はハンドラテーブルで実行する。
+     */
+    private long executeByDecodeCache(long clocks) {
+        long initial_clock;
+
+        initial_clock = computer.clockCount;
+        while (computer.clockCount < initial_clock + clocks) {
+            int signal = processSignals();
+            if (signal == SIGNAL_RESET) {
+                decodeCache.flush();
+                return 0;
+            }
+            else if (signal == SIGNAL_SKIP) {
+                continue;
+            }
+
+            int pc = PC & 0xffff;
+            MB8861DecodeCache.DecodedInstruction d = decodeCache.lookup(pc);
+            if (d != null) {
+                PC = (short) (pc + d.length);
+                d.handler.execute(this, d.operand);
+                computer.clockCount += d.cycles;
             }
             else {
-                if (fetchWai) {
-                    if (nmiStatus) {
-                        nmiStatus = false;
-                        fetchWai = false;
-                        pushAllRegisters();
-                        PC = m.load16(VECTOR_NMI);
-                        computer.clockCount += 12;
-                    }
-                    if (irqStatus && !CI) {
-                        irqStatus = false;
-                        fetchWai = false;
-                        pushAllRegisters();
-                        PC = m.load16(VECTOR_IRQ);
-                        computer.clockCount += 12;
-                    }
-                    computer.clockCount++;
-                    continue;
-                }
-                else {
-                    if (nmiStatus) {
-                        nmiStatus = false;
-                        pushAllRegisters();
-                        PC = m.load16(VECTOR_NMI);
-                        computer.clockCount += 12;
-                        continue;
-                    }
-                    if (irqStatus && !CI) {
-                        irqStatus = false;
-                        pushAllRegisters();
-                        PC = m.load16(VECTOR_IRQ);
-                        computer.clockCount += 12;
-                        continue;
-                    }
-                }
+                int opcode = fetchOp() & 0xff;
+                HANDLERS[opcode].execute(this, fetchOperands(opcode));
+                computer.clockCount += CYCLES[opcode];
+            }
+        }
+        return computer.clockCount - (initial_clock + clocks);
+    }
+
+    /*
+     * コンパイル済みコードから呼ばれ、命令のクロック数を加算する。
+     */
+    void consumeClocks(int cycles) {
+        computer.clockCount += cycles;
+    }
+
+    /*
+     * コンパイル済みコードから命令ごとに呼ばれ、ブロックを抜けるべきかどうかを返す。
+     * 割り込み等の信号が保留されているか、実行中のコードが書き換えられた場合に真となる。
+     */
+    boolean hasPendingSignal() {
+        return resetStatus || haltStatus || nmiStatus || (irqStatus && !CI) || codeModified;
+    }
+
+    /*
+     * switch文で命令をデコードして実行する。
+     */
+    private long executeBySwitch(long clocks) {
+        long initial_clock;
+
+        initial_clock = computer.clockCount;
+        while (computer.clockCount < initial_clock + clocks) {
+            byte offset;
+            byte value;
+            short addr;
+            int signal = processSignals();
+            if (signal == SIGNAL_RESET) {
+                return 0;
+            }
+            else if (signal == SIGNAL_SKIP) {
+                continue;
             }
 
             switch (fetchOp()) {
@@ -1555,59 +2186,59 @@ public final class MB8861 extends CPU {
                 computer.clockCount += 4;
                 break;
             case OP_BCC_REL:
-                branch(fetchOperand1(), !CC);
+                branch(fetchOperand1(), !isCC());
                 computer.clockCount += 4;
                 break;
             case OP_BCS_REL:
-                branch(fetchOperand1(), CC);
+                branch(fetchOperand1(), isCC());
                 computer.clockCount += 4;
                 break;
             case OP_BEQ_REL:
-                branch(fetchOperand1(), CZ);
+                branch(fetchOperand1(), isCZ());
                 computer.clockCount += 4;
                 break;
             case OP_BGE_REL:
-                branch(fetchOperand1(), !(CN ^ CV));
+                branch(fetchOperand1(), !(isCN() ^ isCV()));
                 computer.clockCount += 4;
                 break;
             case OP_BGT_REL:
-                branch(fetchOperand1(), !(CZ | (CN ^ CV)));
+                branch(fetchOperand1(), !(isCZ() | (isCN() ^ isCV())));
                 computer.clockCount += 4;
                 break;
             case OP_BHI_REL:
-                branch(fetchOperand1(), !(CC | CZ));
+                branch(fetchOperand1(), !(isCC() | isCZ()));
                 computer.clockCount += 4;
                 break;
             case OP_BLE_REL:
-                branch(fetchOperand1(), CZ | (CN ^ CV));
+                branch(fetchOperand1(), isCZ() | (isCN() ^ isCV()));
                 computer.clockCount += 4;
                 break;
             case OP_BLS_REL:
-                branch(fetchOperand1(), CC | CZ);
+                branch(fetchOperand1(), isCC() | isCZ());
                 computer.clockCount += 4;
                 break;
             case OP_BLT_REL:
-                branch(fetchOperand1(), CN ^ CV);
+                branch(fetchOperand1(), isCN() ^ isCV());
                 computer.clockCount += 4;
                 break;
             case OP_BMI_REL:
-                branch(fetchOperand1(), CN);
+                branch(fetchOperand1(), isCN());
                 computer.clockCount += 4;
                 break;
             case OP_BNE_REL:
-                branch(fetchOperand1(), !CZ);
+                branch(fetchOperand1(), !isCZ());
                 computer.clockCount += 4;
                 break;
             case OP_BVC_REL:
-                branch(fetchOperand1(), !CV);
+                branch(fetchOperand1(), !isCV());
                 computer.clockCount += 4;
                 break;
             case OP_BVS_REL:
-                branch(fetchOperand1(), CV);
+                branch(fetchOperand1(), isCV());
                 computer.clockCount += 4;
                 break;
             case OP_BPL_REL:
-                branch(fetchOperand1(), !CN);
+                branch(fetchOperand1(), !isCN());
                 computer.clockCount += 4;
                 break;
             case OP_BSR_REL:
@@ -1722,7 +2353,7 @@ public final class MB8861 extends CPU {
     }
     //
     // public void dumpRegister() {
-    //     System.out.printf("computer.clockCount:%d PC:%04x A:%02x B:%02x IX:%04x SP:%04X H:%b I:%b N:%b Z:%b V:%b C:%b\n", computer.clockCount, (short) PC, A, B, IX, SP, CH, CI, CN, CZ, CV, CC);
+    //     System.out.printf("computer.clockCount:%d PC:%04x A:%02x B:%02x IX:%04x SP:%04X H:%b I:%b N:%b Z:%b V:%b C:%b\n", computer.clockCount, (short) PC, A, B, IX, SP, isCH(), CI, isCN(), isCZ(), isCV(), isCC());
     // }
 
     public void saveState(StateSet ss) {
@@ -1731,12 +2362,12 @@ public final class MB8861 extends CPU {
         ss.set("MB8861.IX", IX);
         ss.set("MB8861.SP", SP);
         ss.set("MB8861.PC", PC);
-        ss.set("MB8861.CH", CH);
+        ss.set("MB8861.CH", isCH());
         ss.set("MB8861.CI", CI);
-        ss.set("MB8861.CN", CN);
-        ss.set("MB8861.CZ", CZ);
-        ss.set("MB8861.CV", CV);
-        ss.set("MB8861.CC", CC);
+        ss.set("MB8861.CN", isCN());
+        ss.set("MB8861.CZ", isCZ());
+        ss.set("MB8861.CV", isCV());
+        ss.set("MB8861.CC", isCC());
         ss.set("MB8861.resetStatus", resetStatus);
         ss.set("MB8861.nmiStatus", nmiStatus);
         ss.set("MB8861.irqStatus", irqStatus);
@@ -1751,17 +2382,24 @@ public final class MB8861 extends CPU {
         IX = (Short)ss.get("MB8861.IX");
         SP = (Short)ss.get("MB8861.SP");
         PC = (Short)ss.get("MB8861.PC");
-        CH = (Boolean)ss.get("MB8861.CH");
+        setCH((Boolean)ss.get("MB8861.CH"));
         CI = (Boolean)ss.get("MB8861.CI");
-        CN = (Boolean)ss.get("MB8861.CN");
-        CZ = (Boolean)ss.get("MB8861.CZ");
-        CV = (Boolean)ss.get("MB8861.CV");
-        CC = (Boolean)ss.get("MB8861.CC");
+        setCN((Boolean)ss.get("MB8861.CN"));
+        setCZ((Boolean)ss.get("MB8861.CZ"));
+        setCV((Boolean)ss.get("MB8861.CV"));
+        setCC((Boolean)ss.get("MB8861.CC"));
         resetStatus = (Boolean)ss.get("MB8861.resetStatus");
         nmiStatus = (Boolean)ss.get("MB8861.nmiStatus");
         irqStatus = (Boolean)ss.get("MB8861.irqStatus");
         haltStatus = (Boolean)ss.get("MB8861.haltStatus");
         haltProcessed = (Boolean)ss.get("MB8861.haltProcessed");
         fetchWai = (Boolean)ss.get("MB8861.fetchWai");
+        idleHead = -1;
+        if (compiler != null) {
+            compiler.flush();
+        }
+        if (decodeCache != null) {
+            decodeCache.flush();
+        }
     }
 }
@@ -0,0 +1,510 @@
+/**
+ * JR-100 Emulator Version 2
+ *
+ * Copyright (c) 2006-2020 Kenichi Miyata
+ *
+ * This software is released under the the MIT license
+ * http://opensource.org/licenses/mit-license.php
+ */
+package jp.asamomiji.emulator.device;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import jp.asamomiji.emulator.Addressable;
+import jp.asamomiji.emulator.Memory;
+import jp.asamomiji.emulator.MemorySystem;
+import jp.asamomiji.emulator.ROM;
+
+/*
+ * MB8861の基本ブロックをJVMのバイトコードに変換するコンパイラ
+ *
+ * 一定回数以上実行された番地から分岐命令までを1つのブロックとし、
+ * 各命令のハンドラ呼び出しを並べたクラスを生成する。
+ * 命令ごとの呼び出し箇所が別になるため、JVMのJITコンパイラが
+ * ハンドラをインライン展開できるようになる。
+ * ROM上のオペランドは定数として埋め込み、RAM上のオペランドは実行時に読む。
+ * そのためRAMで監視するのはオペコードの番地だけである。
+ * 監視しているRAMの番地に書き込まれた場合はそのブロックを破棄する。
+ *
+ * 同じ番地、命令、定数オペランドのブロックは生成したクラスを共有し、JR-100のインスタンス間でも使い回す。
+ * Java 14以前では生成したクラスを破棄できないため、共有するクラスの数に上限を設け、
+ * 上限に達した後は新しいブロックをコンパイルしない。
+ * 書き換えで何度も破棄される番地はコンパイルの対象から外し、インタプリタで実行する。
+ */
+final class MB8861Compiler implements MemorySystem.WriteListener {
+    /*
+     * 生成したクラスが実装するインターフェース
+     */
+    interface Code {
+        public void run(MB8861 c);
+    }
+
+    /*
+     * コンパイル済みブロック
+     */
+    static final class CompiledBlock {
+        final int start;
+        final int[] addresses;
+        final boolean[] watched;
+        // 最後の命令を除いたクロック数の合計
+        final int leadingCycles;
+        final Code code;
+
+        CompiledBlock(int start, int[] addresses, boolean[] watched, int leadingCycles, Code code) {
+            this.start = start;
+            this.addresses = addresses;
+            this.watched = watched;
+            this.leadingCycles = leadingCycles;
+            this.code = code;
+        }
+    }
+
+    private final static int DEFAULT_THRESHOLD = 64;
+    private final static int MAX_INSTRUCTIONS = 64;
+    private final static int MAX_SPAN = MAX_INSTRUCTIONS * 3;
+    // 書き換えで破棄された後にコンパイルし直す回数の上限
+    private final static int MAX_RECOMPILES = 4;
+    // 共有するクラスの数の上限
+    private final static int MAX_SHARED_CODES = 8192;
+
+    private final static String CPU_CLASS = "jp/asamomiji/emulator/device/MB8861";
+    private final static String HANDLER_CLASS = "jp/asamomiji/emulator/device/MB8861$InstructionHandler";
+    private final static String CODE_CLASS = "jp/asamomiji/emulator/device/MB8861Compiler$Code";
+    private final static String BLOCK_CLASS = "jp/asamomiji/emulator/device/MB8861Block";
+
+    private static int classCount = 0;
+    private static Method defineHiddenClass = null;
+    private static Object hiddenClassOptions = null;
+    private final static ConcurrentHashMap<String, Code> sharedCodes = new ConcurrentHashMap<String, Code>();
+
+    static {
+        // Java 15以降では破棄可能な隠しクラスとして定義する。
+        try {
+            Class<?> option = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+            hiddenClassOptions = Array.newInstance(option, 0);
+            defineHiddenClass = MethodHandles.Lookup.class.getMethod("defineHiddenClass",
+                    byte[].class, boolean.class, hiddenClassOptions.getClass());
+        }
+        catch (ClassNotFoundException | NoSuchMethodException e) {
+            defineHiddenClass = null;
+        }
+    }
+
+    private MB8861 cpu;
+    private MemorySystem m;
+    private CompiledBlock[] blocks = new CompiledBlock[65536];
+    private int[] counts = new int[65536];
+    private int[] recompiles = new int[65536];
+    private int threshold = DEFAULT_THRESHOLD;
+
+    MB8861Compiler(MB8861 cpu, MemorySystem m) {
+        this.cpu = cpu;
+        this.m = m;
+        m.addWriteListener(this);
+    }
+
+    /**
+     * コンパイルするまでの実行回数を設定する。エンジンの比較試験で使う。
+     *
+     * @param threshold 実行回数
+     */
+    void setThreshold(int threshold) {
+        this.threshold = threshold;
+    }
+
+    /**
+     * 指定した番地から始まるコンパイル済みブロックを返す。
+     * 実行回数がしきい値に達した場合はその場でコンパイルする。
+     *
+     * @param address 番地
+     * @return コンパイル済みブロック。存在しない場合はnull
+     */
+    CompiledBlock lookup(int address) {
+        CompiledBlock block = blocks[address];
+        if (block == null && recompiles[address] < MAX_RECOMPILES && ++counts[address] == threshold) {
+            block = compile(address);
+        }
+        return block;
+    }
+
+    /**
+     * すべてのコンパイル済みブロックを破棄する。
+     */
+    void flush() {
+        for (int i = 0; i < blocks.length; i++) {
+            if (blocks[i] != null) {
+                discard(blocks[i]);
+            }
+        }
+        Arrays.fill(counts, 0);
+        Arrays.fill(recompiles, 0);
+    }
+
+    @Override
+    public void written(int address) {
+        for (int i = address; i >= 0 && i > address - MAX_SPAN; i--) {
+            CompiledBlock block = blocks[i];
+            if (block != null) {
+                for (int a : block.addresses) {
+                    if (a == address) {
+                        discard(block);
+                        recompiles[block.start]++;
+                        cpu.codeModified = true;
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    private void discard(CompiledBlock block) {
+        blocks[block.start] = null;
+        counts[block.start] = 0;
+        for (int i = 0; i < block.addresses.length; i++) {
+            if (block.watched[i]) {
+                m.unwatch(block.addresses[i], block.addresses[i]);
+            }
+        }
+    }
+
+    private static boolean isTerminator(int opcode) {
+        if (MB8861.MODES[opcode] == MB8861.MODE_RELATIVE) {
+            return true;
+        }
+        switch ((byte) opcode) {
+        case MB8861.OP_JMP_IND:
+        case MB8861.OP_JMP_EXT:
+        case MB8861.OP_JSR_IND:
+        case MB8861.OP_JSR_EXT:
+        case MB8861.OP_RTS_IMP:
+        case MB8861.OP_RTI_IMP:
+        case MB8861.OP_SWI_IMP:
+        case MB8861.OP_WAI_IMP:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    private CompiledBlock compile(int start) {
+        int[] addresses = new int[MAX_INSTRUCTIONS];
+        int[] opcodes = new int[MAX_INSTRUCTIONS];
+        int[] operands = new int[MAX_INSTRUCTIONS];
+        int count = 0;
+        int address = start;
+
+        // I/O領域の読み出しは副作用を伴うため、RAMとROMだけを対象とする。
+        while (count < MAX_INSTRUCTIONS) {
+            Addressable memory = m.getMemoryAt(address);
+            if (!(memory instanceof Memory)) {
+                break;
+            }
+            int opcode = memory.load8(address) & 0xff;
+            int next = address + MB8861.instructionLength(opcode);
+            if (next > 0x10000) {
+                break;
+            }
+            addresses[count] = address;
+            opcodes[count] = opcode;
+            operands[count] = constantOperand(address, next);
+            count++;
+            if (isTerminator(opcode) || next == 0x10000) {
+                break;
+            }
+            address = next;
+        }
+        if (count == 0) {
+            return null;
+        }
+
+        int leadingCycles = 0;
+        for (int i = 0; i < count - 1; i++) {
+            leadingCycles += MB8861.CYCLES[opcodes[i]];
+        }
+        Code code;
+        try {
+            code = getCode(addresses, opcodes, operands, count);
+        }
+        catch (ReflectiveOperationException | IOException e) {
+            // 生成に失敗した番地はインタプリタで実行し続ける。
+            return null;
+        }
+        if (code == null) {
+            return null;
+        }
+
+        boolean[] watched = new boolean[count];
+        for (int i = 0; i < count; i++) {
+            if (!(m.getMemoryAt(addresses[i]) instanceof ROM)) {
+                m.watch(addresses[i], addresses[i]);
+                watched[i] = true;
+            }
+        }
+        CompiledBlock block = new CompiledBlock(start, Arrays.copyOf(addresses, count), watched, leadingCycles, code);
+        blocks[start] = block;
+        return block;
+    }
+
+    /*
+     * ROM上の命令のオペランドは定数として埋め込む。
+     * RAM上の命令は実行時に読み出すので-1を返す。
+     */
+    private int constantOperand(int address, int next) {
+        int operand = 0;
+        for (int a = address; a < next; a++) {
+            Addressable memory = m.getMemoryAt(a);
+            if (!(memory instanceof ROM)) {
+                return -1;
+            }
+            if (a > address) {
+                operand = (operand << 8) | (memory.load8(a) & 0xff);
+            }
+        }
+        return operand;
+    }
+
+    /*
+     * 同じブロックのクラスがあればそれを返し、なければ生成する。
+     * 破棄できないクラスしか定義できない環境で共有するクラスが上限に達した場合はnullを返す。
+     */
+    private static Code getCode(int[] addresses, int[] opcodes, int[] operands, int count)
+            throws ReflectiveOperationException, IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            sb.append(addresses[i]).append(':').append(opcodes[i]).append(':').append(operands[i]).append(';');
+        }
+        String key = sb.toString();
+        Code code = sharedCodes.get(key);
+        if (code != null) {
+            return code;
+        }
+        boolean sharable = sharedCodes.size() < MAX_SHARED_CODES;
+        if (!sharable && defineHiddenClass == null) {
+            return null;
+        }
+        code = defineCode(generate(addresses, opcodes, operands, count));
+        if (sharable) {
+            Code previous = sharedCodes.putIfAbsent(key, code);
+            if (previous != null) {
+                code = previous;
+            }
+        }
+        return code;
+    }
+
+    private static Code defineCode(byte[] bytes) throws ReflectiveOperationException {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        Class<?> c;
+        if (defineHiddenClass != null) {
+            c = ((MethodHandles.Lookup) defineHiddenClass.invoke(lookup, bytes, true, hiddenClassOptions)).lookupClass();
+        }
+        else {
+            c = lookup.defineClass(bytes);
+        }
+        return (Code) c.getDeclaredConstructor().newInstance();
+    }
+
+    private static synchronized String nextClassName() {
+        return BLOCK_CLASS + "$" + (classCount++);
+    }
+
+    /*
+     * 以下のメソッドを持つクラスファイルを生成する。
+     *
+     * public void run(MB8861 c) {
+     *     c.PC = address + length; HANDLERS[opcode].execute(c, operand); c.consumeClocks(cycles);
+     *     if (c.hasPendingSignal()) return;
+     *     ...
+     * }
+     */
+    private static byte[] generate(int[] addresses, int[] opcodes, int[] operands, int count) throws IOException {
+        ConstantPool cp = new ConstantPool();
+        int thisClass = cp.classRef(nextClassName());
+        int superClass = cp.classRef("java/lang/Object");
+        int codeClass = cp.classRef(CODE_CLASS);
+        int objectInit = cp.methodRef("java/lang/Object", "<init>", "()V");
+        int pc = cp.fieldRef(CPU_CLASS, "PC", "S");
+        int handlers = cp.fieldRef(CPU_CLASS, "HANDLERS", "[L" + HANDLER_CLASS + ";");
+        int execute = cp.interfaceMethodRef(HANDLER_CLASS, "execute", "(L" + CPU_CLASS + ";I)V");
+        int fetchOperands = cp.methodRef(CPU_CLASS, "fetchOperands", "(I)I");
+        int consumeClocks = cp.methodRef(CPU_CLASS, "consumeClocks", "(I)V");
+        int hasPendingSignal = cp.methodRef(CPU_CLASS, "hasPendingSignal", "()Z");
+        int codeAttribute = cp.utf8("Code");
+        int initName = cp.utf8("<init>");
+        int initDesc = cp.utf8("()V");
+        int runName = cp.utf8("run");
+        int runDesc = cp.utf8("(L" + CPU_CLASS + ";)V");
+
+        ByteArrayOutputStream initCode = new ByteArrayOutputStream();
+        initCode.write(0x2a); // aload_0
+        initCode.write(0xb7); // invokespecial
+        writeShort(initCode, objectInit);
+        initCode.write(0xb1); // return
+
+        ByteArrayOutputStream runCode = new ByteArrayOutputStream();
+        for (int i = 0; i < count; i++) {
+            boolean constant = operands[i] >= 0;
+            int length = constant ? MB8861.instructionLength(opcodes[i]) : 1;
+            runCode.write(0x2b); // aload_1
+            runCode.write(0x11); // sipush
+            writeShort(runCode, (short) (addresses[i] + length));
+            runCode.write(0xb5); // putfield
+            writeShort(runCode, pc);
+            runCode.write(0xb2); // getstatic
+            writeShort(runCode, handlers);
+            runCode.write(0x11); // sipush
+            writeShort(runCode, opcodes[i]);
+            runCode.write(0x32); // aaload
+            runCode.write(0x2b); // aload_1
+            if (constant) {
+                runCode.write(0x13); // ldc_w
+                writeShort(runCode, cp.integer(operands[i]));
+            }
+            else {
+                runCode.write(0x2b); // aload_1
+                runCode.write(0x11); // sipush
+                writeShort(runCode, opcodes[i]);
+                runCode.write(0xb6); // invokevirtual
+                writeShort(runCode, fetchOperands);
+            }
+            runCode.write(0xb9); // invokeinterface
+            writeShort(runCode, execute);
+            runCode.write(3);
+            runCode.write(0);
+            runCode.write(0x2b); // aload_1
+            runCode.write(0x10); // bipush
+            runCode.write(MB8861.CYCLES[opcodes[i]]);
+            runCode.write(0xb6); // invokevirtual
+            writeShort(runCode, consumeClocks);
+            if (i < count - 1) {
+                runCode.write(0x2b); // aload_1
+                runCode.write(0xb6); // invokevirtual
+                writeShort(runCode, hasPendingSignal);
+                runCode.write(0x99); // ifeq
+                writeShort(runCode, 4);
+                runCode.write(0xb1); // return
+            }
+        }
+        runCode.write(0xb1); // return
+
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buf);
+        out.writeInt(0xcafebabe);
+        out.writeShort(0);
+        out.writeShort(49); // StackMapTableを必要としないJava 5形式
+        cp.writeTo(out);
+        out.writeShort(0x0030); // ACC_FINAL | ACC_SUPER
+        out.writeShort(thisClass);
+        out.writeShort(superClass);
+        out.writeShort(1);
+        out.writeShort(codeClass);
+        out.writeShort(0); // フィールド
+        out.writeShort(2); // メソッド
+        writeMethod(out, initName, initDesc, codeAttribute, 1, 1, initCode.toByteArray());
+        writeMethod(out, runName, runDesc, codeAttribute, 4, 2, runCode.toByteArray());
+        out.writeShort(0); // 属性
+        out.flush();
+        return buf.toByteArray();
+    }
+
+    private static void writeShort(ByteArrayOutputStream out, int value) {
+        out.write((value >> 8) & 0xff);
+        out.write(value & 0xff);
+    }
+
+    private static void writeMethod(DataOutputStream out, int name, int desc, int codeAttribute,
+            int maxStack, int maxLocals, byte[] code) throws IOException {
+        out.writeShort(0x0001); // ACC_PUBLIC
+        out.writeShort(name);
+        out.writeShort(desc);
+        out.writeShort(1);
+        out.writeShort(codeAttribute);
+        out.writeInt(2 + 2 + 4 + code.length + 2 + 2);
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(code.length);
+        out.write(code);
+        out.writeShort(0); // 例外テーブル
+        out.writeShort(0); // 属性
+    }
+
+    /*
+     * クラスファイルの定数プール
+     */
+    private static final class ConstantPool {
+        private ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        private DataOutputStream out = new DataOutputStream(buf);
+        private HashMap<String, Integer> entries = new HashMap<String, Integer>();
+        private int count = 1;
+
+        private int add(String key, int tag, int a, int b) throws IOException {
+            Integer index = entries.get(key);
+            if (index != null) {
+                return index;
+            }
+            out.writeByte(tag);
+            out.writeShort(a);
+            if (b >= 0) {
+                out.writeShort(b);
+            }
+            entries.put(key, count);
+            return count++;
+        }
+
+        int utf8(String s) throws IOException {
+            Integer index = entries.get("U" + s);
+            if (index != null) {
+                return index;
+            }
+            out.writeByte(1);
+            out.writeUTF(s);
+            entries.put("U" + s, count);
+            return count++;
+        }
+
+        int integer(int value) throws IOException {
+            Integer index = entries.get("#" + value);
+            if (index != null) {
+                return index;
+            }
+            out.writeByte(3);
+            out.writeInt(value);
+            entries.put("#" + value, count);
+            return count++;
+        }
+
+        int classRef(String name) throws IOException {
+            return add("C" + name, 7, utf8(name), -1);
+        }
+
+        private int nameAndType(String name, String desc) throws IOException {
+            return add("N" + name + ":" + desc, 12, utf8(name), utf8(desc));
+        }
+
+        int fieldRef(String owner, String name, String desc) throws IOException {
+            return add("F" + owner + "." + name + ":" + desc, 9, classRef(owner), nameAndType(name, desc));
+        }
+
+        int methodRef(String owner, String name, String desc) throws IOException {
+            return add("M" + owner + "." + name + ":" + desc, 10, classRef(owner), nameAndType(name, desc));
+        }
+
+        int interfaceMethodRef(String owner, String name, String desc) throws IOException {
+            return add("I" + owner + "." + name + ":" + desc, 11, classRef(owner), nameAndType(name, desc));
+        }
+
+        void writeTo(DataOutputStream dest) throws IOException {
+            out.flush();
+            dest.writeShort(count);
+            dest.write(buf.toByteArray());
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/**
+ * JR-100 Emulator Version 2
+ *
+ * Copyright (c) 2006-2020 Kenichi Miyata
+ *
+ * This software is released under the the MIT license
+ * http://opensource.org/licenses/mit-license.php
+ */
+package jp.asamomiji.emulator.device;
+
+import jp.asamomiji.emulator.Addressable;
+import jp.asamomiji.emulator.Memory;
+import jp.asamomiji.emulator.MemorySystem;
+import jp.asamomiji.emulator.ROM;
+
+/*
+ * MB8861のデコード済み命令キャッシュ
+ *
+ * PCをキーとしてオペコード、オペランド、アドレッシングモード、クロック数を保持する。
+ * ROM上の命令は一度デコードすれば変わらない。
+ * RAM上の命令はページ(256バイト)単位で書き込みを監視し、
+ * 書き込まれた番地を含む命令のエントリだけを破棄する。ページの監視は続ける。
+ */
+final class MB8861DecodeCache implements MemorySystem.WriteListener {
+    /*
+     * デコード済み命令
+     */
+    static final class DecodedInstruction {
+        final int opcode;
+        final int operand;
+        final int mode;
+        final int length;
+        final int cycles;
+        final MB8861.InstructionHandler handler;
+
+        DecodedInstruction(int opcode, int operand) {
+            this.opcode = opcode;
+            this.operand = operand;
+            this.mode = MB8861.MODES[opcode];
+            this.length = MB8861.instructionLength(opcode);
+            this.cycles = MB8861.CYCLES[opcode];
+            this.handler = MB8861.HANDLERS[opcode];
+        }
+    }
+
+    private final static int PAGE_SIZE = 256;
+
+    private MemorySystem m;
+    private DecodedInstruction[] entries = new DecodedInstruction[65536];
+    private boolean[] watchedPages = new boolean[65536 / PAGE_SIZE];
+
+    MB8861DecodeCache(MemorySystem m) {
+        this.m = m;
+        m.addWriteListener(this);
+    }
+
+    /**
+     * 指定した番地のデコード済み命令を返す。
+     * キャッシュにない場合はデコードして登録する。
+     *
+     * @param address 番地
+     * @return デコード済み命令。RAMとROM以外の領域にある場合はnull
+     */
+    DecodedInstruction lookup(int address) {
+        DecodedInstruction d = entries[address];
+        if (d == null) {
+            d = decode(address);
+        }
+        return d;
+    }
+
+    /**
+     * 書き込みを監視しているページのエントリをすべて破棄する。
+     * ROM上のエントリは残す。
+     */
+    void flush() {
+        for (int page = 0; page < watchedPages.length; page++) {
+            if (watchedPages[page]) {
+                invalidate(page);
+            }
+        }
+    }
+
+    @Override
+    public void written(int address) {
+        if (watchedPages[address / PAGE_SIZE]) {
+            // 命令は最長3バイトなので、書き込まれた番地を含みうるのは2つ前の番地からの命令までである。
+            for (int i = Math.max(address - 2, 0); i <= address; i++) {
+                entries[i] = null;
+            }
+        }
+    }
+
+    private void invalidate(int page) {
+        // 前のページから続く命令も含めて破棄する。
+        int start = Math.max(page * PAGE_SIZE - 2, 0);
+        int end = page * PAGE_SIZE + PAGE_SIZE;
+        for (int i = start; i < end; i++) {
+            entries[i] = null;
+        }
+        watchedPages[page] = false;
+        m.unwatch(page * PAGE_SIZE, page * PAGE_SIZE + PAGE_SIZE - 1);
+    }
+
+    private void watch(int page) {
+        if (!watchedPages[page]) {
+            watchedPages[page] = true;
+            m.watch(page * PAGE_SIZE, page * PAGE_SIZE + PAGE_SIZE - 1);
+        }
+    }
+
+    private DecodedInstruction decode(int address) {
+        // I/O領域の読み出しは副作用を伴うため、RAMとROMだけを対象とする。
+        Addressable memory = m.getMemoryAt(address);
+        if (!(memory instanceof Memory)) {
+            return null;
+        }
+        int opcode = memory.load8(address) & 0xff;
+        int next = address + MB8861.instructionLength(opcode);
+        if (next > 0x10000) {
+            return null;
+        }
+        int operand = 0;
+        boolean rom = memory instanceof ROM;
+        for (int a = address + 1; a < next; a++) {
+            memory = m.getMemoryAt(a);
+            if (!(memory instanceof Memory)) {
+                return null;
+            }
+            rom &= memory instanceof ROM;
+            operand = (operand << 8) | (memory.load8(a) & 0xff);
+        }
+        if (!rom) {
+            watch(address / PAGE_SIZE);
+            watch((next - 1) / PAGE_SIZE);
+        }
+        DecodedInstruction d = new DecodedInstruction(opcode, operand);
+        entries[address] = d;
+        return d;
+    }
+}
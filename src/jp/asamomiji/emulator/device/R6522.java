@@ -9,6 +9,7 @@
 package jp.asamomiji.emulator.device;
 
 import jp.asamomiji.emulator.Addressable;
+import jp.asamomiji.emulator.ClockedDevice;
 import jp.asamomiji.emulator.Computer;
 import jp.asamomiji.emulator.Device;
 import jp.asamomiji.emulator.StateSavable;
@@ -19,9 +20,10 @@ import jp.asamomiji.emulator.StateSet;
  *
  * - メモリマップして使うことを想定し、{@link Addressable}インターフェースを実装
  * - デバイスとして使用するため、{@link Device}インターフェースを実装
+ * - アイドルループの早送りのため、{@link ClockedDevice}インターフェースを実装
  * - 状態を持つデバイスのため、{@link StateSavable}インターフェースを実装し、中断状態からの復元を可能にする。
  */
-public class R6522 implements Addressable, Device, StateSavable {
+public class R6522 implements Addressable, ClockedDevice, StateSavable {
     protected Computer computer;
 
     private int startAddr;
@@ -864,109 +866,187 @@ public class R6522 implements Addressable, Device, StateSavable {
     protected void timer1TimeoutMode3_option() {
     }
 
+    /*
+     * 指定したクロックまでVIAの状態を進める。
+     * タイマのタイムアウト等の状態が変化するクロックまでは一括で進め、
+     * 変化するクロックだけを1クロックずつ処理する。
+     */
     private void execute(long clock) {
         while (currentClock <= clock) {
-            // 制御線のパルスモード処理
-            if (CA2timer >= 0) {
-                CA2timer--;
-                if (CA2timer < 0) {
-                    CA2out = 1;
-                    handlerCA2(CA2out);
-                }
+            long quiet = Math.min(getQuietCycles(), clock + 1 - currentClock);
+            if (quiet > 0) {
+                skipCycles(quiet);
             }
+            else {
+                step();
+            }
+        }
+    }
+
+    /*
+     * 次に状態が変化するまでのクロック数を返す。
+     * 制御線のパルス出力中と、毎クロック動作するシフトレジスタのモードでは0を返す。
+     */
+    private long getQuietCycles() {
+        if (CA2timer >= 0 || (ACR & 0x1c) == 0x08 || (ACR & 0x1c) == 0x18) {
+            return 0;
+        }
 
-            // タイマ1
-            // 実機ではΦ2の立ち下がりでデクリメントされるが、MPUからの読み出しはデクリメント前の値が読み出される。
-            // T1CHへの書き込み時にPB7をLowにする(反転させるのではない)。その後タイムアウトでHighにする。
-            if (timer1Initialized) {
-                timer1Initialized = false;
+        // タイマ1はtimer1が-1を下回った次のクロックでタイムアウトする。
+        long quiet = (timer1Initialized ? 1 : 0) + (timer1 >= 0 ? timer1 + 1 : 0);
+
+        // タイマ2
+        if (timer2 < 0) {
+            return 0;
+        }
+        switch (ACR & 0x20) {
+        case 0x00:  // Timed interrupt mode
+            quiet = Math.min(quiet, (timer2Initialized ? 1 : 0) + timer2 + 1);
+            break;
+        case 0x20:  // pulse count mode
+            // PB6はタイムアウト等の処理の中でしか変化しないため、未処理の立ち下がりがなければ待てる。
+            if (previousPB6 != 0 && (inputPortB() & 0x40) == 0) {
+                return 0;
             }
-            else if (timer1 >= 0) {
-                timer1--;
+            break;
+        default:
+            throw new AssertionError("invalid t2mode: " + (ACR & 0x20));
+        }
+        return quiet;
+    }
+
+    /*
+     * 状態の変化しないクロックを一括で進める。
+     *
+     * @param cycles 進めるクロック数(getQuietCycles()以下であること)
+     */
+    private void skipCycles(long cycles) {
+        if (timer1Initialized) {
+            timer1Initialized = false;
+            timer1 -= cycles - 1;
+        }
+        else if (timer1 >= 0) {
+            timer1 -= cycles;
+        }
+
+        if ((ACR & 0x20) == 0x00) {
+            if (timer2Initialized) {
+                timer2Initialized = false;
+                timer2 -= cycles - 1;
             }
             else {
-                if (timer1Enable) {
-                    setInterrupt(IFR_BIT_T1);
-                    switch (ACR & 0xc0) {
-                    case 0x00: // Timed interrupt each timeOffset T1 is loaded. PB7 Disabled
-                        timer1Enable = false;
-                        timer1TimeoutMode0_option();
-                        break;
-                    case 0x40: // Continuous interrupt.
-                        invertPortB(7);
-                        timer1TimeoutMode1_option();
-                        break;
-                    case 0x80: // Timed interrupt each timeOffset T1 is loaded. One-shot output
-                        timer1Enable = false;
-                        setPortB(7, 1);
-                        timer1TimeoutMode2_option();
-                        break;
-                    case 0xc0: // Continuous interrupt. Square wave output
-                        invertPortB(7);
-                        timer1TimeoutMode3_option();
-                        break;
-                    default:
-                        throw new AssertionError("invalid t1mode: " + (ACR & 0xc0));
-                    }
-                }
-                timer1 = latch1;
-                storeT1CH_option();
+                timer2 -= cycles;
+            }
+        }
+        previousPB6 = inputPortB() & 0x40;
+
+        currentClock += cycles;
+    }
+
+    /*
+     * 1クロック分の処理を行う。
+     */
+    private void step() {
+        // 制御線のパルスモード処理
+        if (CA2timer >= 0) {
+            CA2timer--;
+            if (CA2timer < 0) {
+                CA2out = 1;
+                handlerCA2(CA2out);
             }
+        }
 
-            // タイマ2
-
-            // Timer2用のPB6の処理
-            int currentPB6 = inputPortB() & 0x40;
-            boolean PB6negative = (previousPB6 != 0 && currentPB6 == 0);
-            previousPB6 = currentPB6;
-
-            if (timer2 >= 0) {
-                switch (ACR & 0x20) {
-                case 0x00:  // Timed interrupt mode
-                    if (timer2Initialized) {
-                        timer2Initialized = false;
-                    }
-                    else {
-                        timer2--;
-                    }
+        // タイマ1
+        // 実機ではΦ2の立ち下がりでデクリメントされるが、MPUからの読み出しはデクリメント前の値が読み出される。
+        // T1CHへの書き込み時にPB7をLowにする(反転させるのではない)。その後タイムアウトでHighにする。
+        if (timer1Initialized) {
+            timer1Initialized = false;
+        }
+        else if (timer1 >= 0) {
+            timer1--;
+        }
+        else {
+            if (timer1Enable) {
+                setInterrupt(IFR_BIT_T1);
+                switch (ACR & 0xc0) {
+                case 0x00: // Timed interrupt each timeOffset T1 is loaded. PB7 Disabled
+                    timer1Enable = false;
+                    timer1TimeoutMode0_option();
                     break;
-                case 0x20:  // pulse count mode
-                    // PB6の立ち下がりでカウントダウンする。
-                    if (PB6negative) {
-                        timer2--;
-                    }
+                case 0x40: // Continuous interrupt.
+                    invertPortB(7);
+                    timer1TimeoutMode1_option();
+                    break;
+                case 0x80: // Timed interrupt each timeOffset T1 is loaded. One-shot output
+                    timer1Enable = false;
+                    setPortB(7, 1);
+                    timer1TimeoutMode2_option();
+                    break;
+                case 0xc0: // Continuous interrupt. Square wave output
+                    invertPortB(7);
+                    timer1TimeoutMode3_option();
                     break;
                 default:
-                    throw new AssertionError("invalid t2mode: " + (ACR & 0x20));
+                    throw new AssertionError("invalid t1mode: " + (ACR & 0xc0));
                 }
             }
-            else {
-                if (timer2Enable) {
-                    setInterrupt(IFR_BIT_T2);
-                    timer2Enable = false;
+            timer1 = latch1;
+            storeT1CH_option();
+        }
+
+        // タイマ2
+
+        // Timer2用のPB6の処理
+        int currentPB6 = inputPortB() & 0x40;
+        boolean PB6negative = (previousPB6 != 0 && currentPB6 == 0);
+        previousPB6 = currentPB6;
+
+        if (timer2 >= 0) {
+            switch (ACR & 0x20) {
+            case 0x00:  // Timed interrupt mode
+                if (timer2Initialized) {
+                    timer2Initialized = false;
+                }
+                else {
+                    timer2--;
                 }
-                if (shiftStarted && (timer2 & 0xff) == 0xff) {  // 下位バイトがタイムアウトした場合
-                    if ((ACR & 0x1c) == 0x04) { // SR mode 1
-                        processShiftIn();
-                    }
-                    else if ((ACR & 0x1c) == 0x10 || (ACR & 0x1c) == 0x14) {    // sr mode 4 or 5
-                        processShiftOut();
-                    }
+                break;
+            case 0x20:  // pulse count mode
+                // PB6の立ち下がりでカウントダウンする。
+                if (PB6negative) {
+                    timer2--;
                 }
-                timer2 = latch2;
+                break;
+            default:
+                throw new AssertionError("invalid t2mode: " + (ACR & 0x20));
             }
-
-            // シフトレジスタ
-            // mode2とmode6以外はTimer2処理またはCB1処理の中で処理を記述する。
-            if ((ACR & 0x1c) == 0x08) { // mode 2
-                processShiftIn();
+        }
+        else {
+            if (timer2Enable) {
+                setInterrupt(IFR_BIT_T2);
+                timer2Enable = false;
             }
-            else if ((ACR & 0x1c) == 0x18) {    // mode 6
-                processShiftOut();
+            if (shiftStarted && (timer2 & 0xff) == 0xff) {  // 下位バイトがタイムアウトした場合
+                if ((ACR & 0x1c) == 0x04) { // SR mode 1
+                    processShiftIn();
+                }
+                else if ((ACR & 0x1c) == 0x10 || (ACR & 0x1c) == 0x14) {    // sr mode 4 or 5
+                    processShiftOut();
+                }
             }
+            timer2 = latch2;
+        }
 
-            currentClock++;
+        // シフトレジスタ
+        // mode2とmode6以外はTimer2処理またはCB1処理の中で処理を記述する。
+        if ((ACR & 0x1c) == 0x08) { // mode 2
+            processShiftIn();
+        }
+        else if ((ACR & 0x1c) == 0x18) {    // mode 6
+            processShiftOut();
         }
+
+        currentClock++;
     }
 
     public void reset() {
@@ -1003,6 +1083,27 @@ public class R6522 implements Addressable, Device, StateSavable {
         execute(computer.getClockCount());
     }
 
+    /**
+     * タイマのタイムアウト等でレジスタの読み出し結果が次に変化しうるクロックを返す。
+     * 制御線のパルスやシフトレジスタが動作中の場合は現在のクロックを返す。
+     */
+    public long getNextEventClock() {
+        return currentClock + getQuietCycles();
+    }
+
+    public boolean isStableRead(int address) {
+        switch (address - startAddr) {
+        case VIA_REG_T1CL:
+        case VIA_REG_T1CH:
+        case VIA_REG_T2CL:
+        case VIA_REG_T2CH:
+        case VIA_REG_SR:
+            return false;
+        default:
+            return true;
+        }
+    }
+
     public void saveState(StateSet ss) {
         ss.set("R6522.startAddr", startAddr);
         ss.set("R6522.endAddr", endAddr);
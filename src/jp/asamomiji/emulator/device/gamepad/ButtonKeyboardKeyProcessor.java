@@ -8,23 +8,25 @@
  */
 package jp.asamomiji.emulator.device.gamepad;
 
-import jp.asamomiji.emulator.AbstractKeyboard;
+import jp.asamomiji.emulator.Computer;
+import jp.asamomiji.emulator.KeyPressedEvent;
+import jp.asamomiji.emulator.KeyReleasedEvent;
 
 public class ButtonKeyboardKeyProcessor extends ButtonKeyProcessor {
-    private AbstractKeyboard keyboard;
+    private Computer computer;
 
-    public ButtonKeyboardKeyProcessor(Gamepad gamepad, ComponentStatus[] mapper, AbstractKeyboard keyboard) {
+    public ButtonKeyboardKeyProcessor(Gamepad gamepad, ComponentStatus[] mapper, Computer computer) {
         super(gamepad, mapper);
-        this.keyboard = keyboard;
+        this.computer = computer;
     }
 
     @Override
     public void press(ComponentStatus status) {
-        keyboard.keyPressed(status.getKeyCode());
+        computer.postEvent(new KeyPressedEvent(0, status.getKeyCode()));
     }
 
     @Override
     public void release(ComponentStatus status) {
-        keyboard.keyReleased(status.getKeyCode());
+        computer.postEvent(new KeyReleasedEvent(0, status.getKeyCode()));
     }
 }
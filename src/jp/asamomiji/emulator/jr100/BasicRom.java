@@ -25,11 +25,42 @@ public final class BasicRom extends ROM {
         readROM(fname);
     }
 
+    /**
+     * 読み込み済みのROMイメージを使うBasicRomを構築する。
+     * イメージの配列は複製せずに参照するため、複数のBasicRomで共有できる。
+     *
+     * @param image ROMイメージ
+     * @param start 開始アドレス
+     * @param length 長さ
+     */
+    public BasicRom(byte[] image, int start, int length) {
+        super(start, length);
+        if (image.length != length) {
+            throw new IllegalArgumentException("ROMイメージの長さ(" + image.length + ")が不正です。");
+        }
+        data = image;
+    }
+
+    /**
+     * ROMファイルを読み込み、共有可能なROMイメージを返す。
+     *
+     * @param fname ROMファイル名
+     * @param start 開始アドレス
+     * @param length 長さ
+     * @return ROMイメージ
+     * @throws IOException ファイルを読み込めないか、形式が不正な場合
+     */
+    public static byte[] readImage(String fname, int start, int length) throws IOException {
+        byte[] image = new byte[length];
+        load(fname, image);
+        return image;
+    }
+
     public int getFontAddress() {
         return 0xe000;
     }
 
-    private int readByLittleEndian(InputStream in) throws IOException {
+    private static int readByLittleEndian(InputStream in) throws IOException {
         int value1 = in.read();
         int value2 = in.read();
         int value3 = in.read();
@@ -38,7 +69,7 @@ public final class BasicRom extends ROM {
         return value1 + (value2 << 8) + (value3 << 16) + (value4 << 24);
     }
 
-    private boolean checkFile(FileInputStream in) throws IOException {
+    private static boolean checkFile(FileInputStream in) throws IOException {
         byte[] id = new byte[4];
 
         in.read(id);
@@ -50,35 +81,50 @@ public final class BasicRom extends ROM {
         return true;
     }
 
+    /**
+     * ROMファイルを読み込む。ファイルを読み込めない場合の内容は0のままになる。
+     *
+     * @param filename ROMファイル名
+     */
     public void readROM(String filename) {
         try {
-            FileInputStream in = new FileInputStream(filename);
+            load(filename, data);
+        }
+        catch (IOException e) {
+            return ;
+        }
+    }
+
+    private static void load(String filename, byte[] dest) throws IOException {
+        try (FileInputStream in = new FileInputStream(filename)) {
             if (!checkFile(in)) {
-                throw new IOException("invalid file format");
+                throw new IOException(filename + ": invalid file format");
             }
             int nlen = readByLittleEndian(in);
+            if (nlen < 0 || nlen > 65536) {
+                throw new IOException(filename + ": invalid name length: " + nlen);
+            }
             byte[] pname_array = new byte[nlen];
             in.read(pname_array);
 
             int startAddress = readByLittleEndian(in);
             int length = readByLittleEndian(in);
             if (startAddress < 0 || startAddress > 65535) {
-                throw new IOException("invalid address: " + startAddress);
+                throw new IOException(filename + ": invalid address: " + startAddress);
             }
-            if (length < 0 || startAddress + length > 65536) {
-                throw new IOException("invalid length: " + length);
+            if (length < 0 || startAddress + length > 65536 || length > dest.length) {
+                throw new IOException(filename + ": invalid length: " + length);
             }
 
             readByLittleEndian(in);
 
             for (int i = 0; i < length; i++) {
                 int v = in.read();
-                data[i] = (byte)(v & 0xff);
+                if (v < 0) {
+                    throw new IOException(filename + ": unexpected end of file");
+                }
+                dest[i] = (byte)(v & 0xff);
             }
-            in.close();
-        }
-        catch (IOException e) {
-            return ;
         }
     }
 }
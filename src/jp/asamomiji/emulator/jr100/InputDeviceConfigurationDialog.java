@@ -805,8 +805,8 @@ public class InputDeviceConfigurationDialog extends JDialog {
         Gamepad.setPropertyOfGamepadAxisMapping(axisMapping);
         Gamepad.setPropertyOfGamepadButtonMapping(buttonMapping);
 
-        gamepad.setAxisKeyProcessor(new AxisKeyboardKeyProcessor(gamepad, axisMapping, computer.getHardware().getKeyboard()));
-        gamepad.setButtonKeyProcessor(new ButtonKeyboardKeyProcessor(gamepad, buttonMapping, computer.getHardware().getKeyboard()));
+        gamepad.setAxisKeyProcessor(new AxisKeyboardKeyProcessor(gamepad, axisMapping, computer));
+        gamepad.setButtonKeyProcessor(new ButtonKeyboardKeyProcessor(gamepad, buttonMapping, computer));
 
         gamepad.restart(c);
 
@@ -8,8 +8,11 @@
  */
 package jp.asamomiji.emulator.jr100;
 
+import java.util.Properties;
+
 import jp.asamomiji.emulator.Application;
 import jp.asamomiji.emulator.Computer;
+import jp.asamomiji.emulator.Configuration;
 import jp.asamomiji.emulator.MemorySystem;
 import jp.asamomiji.emulator.UnmappedMemory;
 import jp.asamomiji.emulator.device.Beep;
@@ -22,24 +25,71 @@ import jp.asamomiji.emulator.device.gamepad.Gamepad;
 public final class JR100 extends Computer {
     public final static String PROPERTY_EXTENDED_RAM = "jr100.extended_ram";
     public final static String PROPERTY_CPU_CLOCK_FREQUENCY = "jr100.cpu_clock_frequency";
+    public final static String PROPERTY_CPU_ENGINE = "jr100.cpu_engine";
+    public final static String PROPERTY_IDLE_DETECTION = "jr100.idle_detection";
 
     public final static int ADDRESS_START_OF_BASIC_PROGRAM = 0x0246;
     public final static int WORKAREA_END_OF_BASIC_PROGRAM = 0x06;
 
     public static final int DEFAULT_CPU_CLOCK = 894 * 1000;
+    public static final int ADDRESS_BASIC_ROM = 0xe000;
+    public static final int LENGTH_BASIC_ROM = 0x2000;
     private static final int MEMORY_CAPACITY = 65536;
     private static final double REFRESH_RATE = 1.0 / 50.0;
 
-    private static int clockFrequency = DEFAULT_CPU_CLOCK;
+    private int clockFrequency = DEFAULT_CPU_CLOCK;
 
+    private final boolean headless;
 
     public JR100(Application application, String fname) {
-        super(application, REFRESH_RATE);
+        this(application, fname, false);
+    }
+
+    /**
+     * JR-100を構成する。
+     * ヘッドレス構成では画面、音声、ゲームパッドを持たず、AWTやサウンドデバイスを使わない。
+     * 実時間に合わせずに可能な限り速く実行する。
+     *
+     * @param application アプリケーション。ヘッドレス構成ではnullでもよい。
+     * @param fname BASIC ROMのファイル名
+     * @param headless ヘッドレス構成の場合はtrue
+     */
+    public JR100(Application application, String fname, boolean headless) {
+        this(application, fname, headless, Configuration.getProperties());
+    }
+
+    /**
+     * 設定値を指定してJR-100を構成する。
+     * 複数のJR-100を並行して動かす場合は、それぞれに別の設定値のオブジェクトを渡す。
+     *
+     * @param application アプリケーション。ヘッドレス構成ではnullでもよい。
+     * @param fname BASIC ROMのファイル名
+     * @param headless ヘッドレス構成の場合はtrue
+     * @param properties このJR-100が参照する設定値
+     */
+    public JR100(Application application, String fname, boolean headless, Properties properties) {
+        this(application, new BasicRom(fname, ADDRESS_BASIC_ROM, LENGTH_BASIC_ROM), headless, properties);
+    }
+
+    /**
+     * 読み込み済みのROMイメージと設定を指定して、ヘッドレス構成のJR-100を構成する。
+     * ROMイメージは複数のJR-100で共有でき、書き換えられることはない。
+     *
+     * @param config このJR-100の設定
+     * @param rom_image BASIC ROMのイメージ(BasicRom.readImageで読み込んだもの)
+     */
+    public JR100(JR100Config config, byte[] rom_image) {
+        this(null, new BasicRom(rom_image, ADDRESS_BASIC_ROM, LENGTH_BASIC_ROM), true, config.toProperties());
+    }
+
+    private JR100(Application application, BasicRom rom, boolean headless, Properties properties) {
+        super(application, REFRESH_RATE, properties);
+        this.headless = headless;
 
         // メモリ空間の初期化
         MemorySystem m = getHardware().getMemory();
         m.allocateSpace(MEMORY_CAPACITY);
-        if (getPropertyOfUseExtendedRam()) {
+        if (getPropertyOfUseExtendedRam(properties)) {
             m.registMemory(new MainRam(0x0000, 0x8000));
         }
         else {
@@ -48,18 +98,28 @@ public final class JR100 extends Computer {
         m.registMemory(new UserDefinedCharacterRam(0xc000, 0x100));
         m.registMemory(new VideoRam(0xc100, 0x300));
         m.registMemory(new ExtendedIOPort(this, 0xcc00));
-        m.registMemory(new BasicRom(fname, 0xe000, 0x2000));
+        m.registMemory(rom);
 
         // CPUの設定
-        setCPU(new MB8861(this));
+        MB8861 cpu = new MB8861(this);
+        cpu.setEngine(getPropertyOfCpuEngine(properties));
+        cpu.setIdleDetection(getPropertyOfIdleDetection(properties));
+        setCPU(cpu);
 
         // VIAの設定とメモリ空間へのマッピング
         JR100R6522 via = new JR100R6522(this, 0xc800);
         m.registMemory(via);
 
         // デバイスの設定
-        getHardware().setSoundProcessor(new Beep(this, 44100.0));
         getHardware().setKeyboard(new JR100Keyboard(this));
+        getDevices().add(via);
+        getDevices().add(getHardware().getKeyboard());
+        if (headless) {
+            setSpeedMultiplier(SPEED_UNLIMITED);
+            return;
+        }
+
+        getHardware().setSoundProcessor(new Beep(this, 44100.0));
         getHardware().setGamepad(new Gamepad(this));
 
         JR100Display display = new JR100Display(this);
@@ -71,14 +131,23 @@ public final class JR100 extends Computer {
             (VideoRam)m.getMemory(VideoRam.class);
         vm.setDisplay(display);
 
-        getDevices().add(via);
-        getDevices().add(getHardware().getKeyboard());
         getDevices().add(display);
         getDevices().add(getHardware().getSoundProcessor());
     }
 
+    /**
+     * ヘッドレス構成かどうかを返す。
+     */
+    public boolean isHeadless() {
+        return headless;
+    }
+
     public static boolean getPropertyOfUseExtendedRam() {
-        String m = Application.getProperties().getProperty(PROPERTY_EXTENDED_RAM);
+        return getPropertyOfUseExtendedRam(Configuration.getProperties());
+    }
+
+    public static boolean getPropertyOfUseExtendedRam(Properties p) {
+        String m = p.getProperty(PROPERTY_EXTENDED_RAM);
         if (m == null) {
             return false;
         }
@@ -88,11 +157,15 @@ public final class JR100 extends Computer {
     }
 
     public static void setPropertyOfUseExtendedRam(boolean value) {
-        Application.getProperties().setProperty(PROPERTY_EXTENDED_RAM, Boolean.toString(value));
+        Configuration.getProperties().setProperty(PROPERTY_EXTENDED_RAM, Boolean.toString(value));
     }
 
     public static int getPropertyOfCpuClockFrequency() {
-        String m = Application.getProperties().getProperty(PROPERTY_CPU_CLOCK_FREQUENCY);
+        return getPropertyOfCpuClockFrequency(Configuration.getProperties());
+    }
+
+    public static int getPropertyOfCpuClockFrequency(Properties p) {
+        String m = p.getProperty(PROPERTY_CPU_CLOCK_FREQUENCY);
         if (m == null) {
             return DEFAULT_CPU_CLOCK;
         }
@@ -102,7 +175,65 @@ public final class JR100 extends Computer {
     }
 
     public static void setPropertyOfCpuClockFrequency(int value) {
-        Application.getProperties().setProperty(PROPERTY_CPU_CLOCK_FREQUENCY, Integer.toString(value));
+        Configuration.getProperties().setProperty(PROPERTY_CPU_CLOCK_FREQUENCY, Integer.toString(value));
+    }
+
+    /**
+     * CPUの命令実行エンジンを取得する。
+     * 設定値は"switch"、"table"、"jit"または"predecode"で、エミュレータ起動時にのみ反映される。
+     *
+     * @return MB8861.ENGINE_SWITCH、MB8861.ENGINE_TABLE、MB8861.ENGINE_JITまたはMB8861.ENGINE_PREDECODE
+     */
+    public static int getPropertyOfCpuEngine() {
+        return getPropertyOfCpuEngine(Configuration.getProperties());
+    }
+
+    public static int getPropertyOfCpuEngine(Properties p) {
+        String m = p.getProperty(PROPERTY_CPU_ENGINE);
+        if (m != null && m.equals("table")) {
+            return MB8861.ENGINE_TABLE;
+        }
+        else if (m != null && m.equals("jit")) {
+            return MB8861.ENGINE_JIT;
+        }
+        else if (m != null && m.equals("predecode")) {
+            return MB8861.ENGINE_PREDECODE;
+        }
+        else {
+            return MB8861.ENGINE_SWITCH;
+        }
+    }
+
+    public static void setPropertyOfCpuEngine(int engine) {
+        String s;
+        switch (engine) {
+        case MB8861.ENGINE_TABLE:
+            s = "table";
+            break;
+        case MB8861.ENGINE_JIT:
+            s = "jit";
+            break;
+        case MB8861.ENGINE_PREDECODE:
+            s = "predecode";
+            break;
+        default:
+            s = "switch";
+            break;
+        }
+        Configuration.getProperties().setProperty(PROPERTY_CPU_ENGINE, s);
+    }
+
+    public static boolean getPropertyOfIdleDetection() {
+        return getPropertyOfIdleDetection(Configuration.getProperties());
+    }
+
+    public static boolean getPropertyOfIdleDetection(Properties p) {
+        return Boolean.parseBoolean(
+            p.getProperty(PROPERTY_IDLE_DETECTION, "true"));
+    }
+
+    public static void setPropertyOfIdleDetection(boolean value) {
+        Configuration.getProperties().setProperty(PROPERTY_IDLE_DETECTION, Boolean.toString(value));
     }
 
     @Override
@@ -116,16 +247,16 @@ public final class JR100 extends Computer {
     }
 
     @Override
-    public void powerOn() {
-        setClockFrequency(getPropertyOfCpuClockFrequency());
+    protected void switchOn() {
+        setClockFrequency(getPropertyOfCpuClockFrequency(getProperties()));
 
-        if (getPropertyOfUseExtendedRam()) {
+        if (getPropertyOfUseExtendedRam(getProperties())) {
             getHardware().getMemory().registMemory(new MainRam(0x0000, 0x8000));
         }
         else {
             getHardware().getMemory().registMemory(new MainRam(0x0000, 0x4000));
             getHardware().getMemory().registMemory(new UnmappedMemory(0x4000, 0x4000));
         }
-        super.powerOn();
+        super.switchOn();
     }
 }
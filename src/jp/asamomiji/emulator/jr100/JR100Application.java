@@ -64,6 +64,7 @@ public final class JR100Application extends Application {
     private JRadioButtonMenuItem MI_powerOff = null;
     private JRadioButtonMenuItem MI_powerOn = null;
     private JMenu M_snapshot = null;
+    private JMenu M_speed = null;
     private JMenuItem MI_takeSnapshot = null;
     private JMenuItem MI_revertSnapshot = null;
     private JMenu M_configuration = null;
@@ -199,6 +200,7 @@ public final class JR100Application extends Application {
             M_tool.add(getPauseMenuItem());
             M_tool.add(getResetMenuItem());
             M_tool.add(getPowerMenu());
+            M_tool.add(getSpeedMenu());
             M_tool.add(getSnapshotMenu());
         }
         return M_tool;
@@ -334,6 +336,27 @@ public final class JR100Application extends Application {
         return MI_powerOff ;
     }
 
+    private JMenu getSpeedMenu() {
+        if (M_speed == null) {
+            M_speed = new JMenu("速度");
+            ButtonGroup g = new ButtonGroup();
+            int[] multipliers = new int[] {1, 2, 4, Computer.SPEED_UNLIMITED};
+            for (final int m : multipliers) {
+                JRadioButtonMenuItem item =
+                    new JRadioButtonMenuItem(m == Computer.SPEED_UNLIMITED ? "無制限" : "x" + m);
+                item.setSelected(getComputer().getSpeedMultiplier() == m);
+                item.addActionListener(new ActionListener() {
+                    public void actionPerformed(ActionEvent e) {
+                        getComputer().setSpeedMultiplier(m);
+                    }
+                });
+                g.add(item);
+                M_speed.add(item);
+            }
+        }
+        return M_speed;
+    }
+
     private JMenu getSnapshotMenu() {
         if (M_snapshot == null) {
             M_snapshot = new JMenu("スナップショット");
@@ -0,0 +1,516 @@
+/**
+ * JR-100 Emulator Version 2
+ *
+ * Copyright (c) 2006-2020 Kenichi Miyata
+ *
+ * This software is released under the the MIT license
+ * http://opensource.org/licenses/mit-license.php
+ */
+package jp.asamomiji.emulator.jr100;
+
+import java.awt.event.KeyEvent;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+import jp.asamomiji.emulator.Computer;
+import jp.asamomiji.emulator.Configuration;
+import jp.asamomiji.emulator.EmulatorEvent;
+import jp.asamomiji.emulator.EventQueue;
+import jp.asamomiji.emulator.KeyPressedEvent;
+import jp.asamomiji.emulator.KeyReleasedEvent;
+import jp.asamomiji.emulator.MemorySystem;
+import jp.asamomiji.emulator.PowerOffEvent;
+import jp.asamomiji.emulator.Program;
+import jp.asamomiji.emulator.device.MB8861;
+import jp.asamomiji.emulator.file.BasicTextFormatFile;
+import jp.asamomiji.emulator.file.BinaryTextFormatFile;
+import jp.asamomiji.emulator.file.DataFile;
+import jp.asamomiji.emulator.file.ProgFormatFile;
+
+/*
+ * JR-100をGUIなしで実行するコマンドラインツール
+ *
+ * ヘッドレス構成のJR100でROMを起動し、プログラムファイルを読み込んでコマンドを入力した後、
+ * 指定したクロック数またはフレーム数を可能な限り速く実行して、画面、メモリ、レジスタ、
+ * 実行時間を出力する。出力は"[セクション名]"で始まるテキストで、統計値は"名前=値"の形式とする。
+ */
+public final class JR100Batch {
+    public final static int DEFAULT_BOOT_FRAMES = 100;
+    public final static int DEFAULT_RUN_FRAMES = 250;
+
+    /**
+     * 1回のキー入力でキーを押している、または離しているフレーム数
+     */
+    public final static int KEY_FRAMES = 3;
+
+    public final static int SCREEN_COLUMNS = 32;
+    public final static int SCREEN_ROWS = 24;
+    public final static int PIXELS_PER_CHARACTER = 8;
+
+    private final static int ADDRESS_UDC = 0xc000;
+    private final static int ADDRESS_VRAM = 0xc100;
+
+    private final static int EXIT_SUCCESS = 0;
+    private final static int EXIT_USAGE = 1;
+    private final static int EXIT_ERROR = 2;
+
+    private String romFileName = JR100Application.DEFAULT_ROM_FILE_NAME;
+    private List<File> files = new ArrayList<File>();
+    private List<String> commands = new ArrayList<String>();
+    private long bootFrames = DEFAULT_BOOT_FRAMES;
+    private long runFrames = DEFAULT_RUN_FRAMES;
+    private long runCycles = -1;
+    private String vramTextFile = null;
+    private String vramPngFile = null;
+    private List<int[]> ramRegions = new ArrayList<int[]>();
+    private boolean dumpRegisters = false;
+    private byte[] romImage = null;
+
+    /*
+     * 1回の実行の結果
+     */
+    static final class Result {
+        JR100 computer;
+        long wallTime;
+        long runStartClock;
+        String loadError;
+    }
+
+    JR100Batch() {
+    }
+
+    static void usage(PrintStream out) {
+        out.println("usage: JR100Batch [options] [file...]");
+        out.println("  -rom <file>          BASIC ROMファイル (既定値: " + JR100Application.DEFAULT_ROM_FILE_NAME + ")");
+        out.println("  -properties <file>   設定ファイル");
+        out.println("  -boot <frames>       プログラムを読み込む前に実行するフレーム数 (既定値: " + DEFAULT_BOOT_FRAMES + ")");
+        out.println("  -type <text>         プログラムの読み込み後に入力するコマンド。末尾でリターンキーを押す。");
+        out.println("  -frames <n>          コマンド入力後に実行するフレーム数 (既定値: " + DEFAULT_RUN_FRAMES + ")");
+        out.println("  -cycles <n>          コマンド入力後に実行するクロック数");
+        out.println("  -vram-text <file>    画面をテキストで出力する (\"-\"は標準出力)");
+        out.println("  -vram-png <file>     画面をPNG形式で出力する");
+        out.println("  -ram <start>-<end>   メモリの内容を16進数で出力する (アドレスは16進数)");
+        out.println("  -regs                CPUのレジスタを出力する");
+    }
+
+    boolean parseArguments(String[] args) {
+        boolean cycles_specified = false;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String a = args[i];
+                if (a.equals("-rom")) {
+                    romFileName = args[++i];
+                }
+                else if (a.equals("-properties")) {
+                    try (InputStream in = new FileInputStream(args[++i])) {
+                        Configuration.getProperties().load(in);
+                    }
+                }
+                else if (a.equals("-boot")) {
+                    bootFrames = Long.parseLong(args[++i]);
+                }
+                else if (a.equals("-type")) {
+                    commands.add(args[++i]);
+                }
+                else if (a.equals("-frames")) {
+                    runFrames = Long.parseLong(args[++i]);
+                    runCycles = -1;
+                    cycles_specified = false;
+                }
+                else if (a.equals("-cycles")) {
+                    runCycles = Long.parseLong(args[++i]);
+                    cycles_specified = true;
+                }
+                else if (a.equals("-vram-text")) {
+                    vramTextFile = args[++i];
+                }
+                else if (a.equals("-vram-png")) {
+                    vramPngFile = args[++i];
+                }
+                else if (a.equals("-ram")) {
+                    String[] r = args[++i].split("-");
+                    int start = Integer.parseInt(r[0], 16);
+                    int end = (r.length > 1) ? Integer.parseInt(r[1], 16) : start;
+                    if (r.length > 2 || start < 0 || end > 0xffff || start > end) {
+                        throw new IllegalArgumentException("不正なアドレス範囲です: " + args[i]);
+                    }
+                    ramRegions.add(new int[] {start, end});
+                }
+                else if (a.equals("-regs")) {
+                    dumpRegisters = true;
+                }
+                else if (a.startsWith("-")) {
+                    throw new IllegalArgumentException("不明なオプションです: " + a);
+                }
+                else {
+                    files.add(new File(a));
+                }
+            }
+            if (bootFrames < 0 || runFrames < 0 || (cycles_specified && runCycles < 0)) {
+                throw new IllegalArgumentException("フレーム数またはクロック数が不正です。");
+            }
+            for (String c : commands) {
+                toKeyCodes(c);
+            }
+        }
+        catch (ArrayIndexOutOfBoundsException e) {
+            System.err.println("オプションの引数がありません。");
+            return false;
+        }
+        catch (IllegalArgumentException | IOException e) {
+            System.err.println(e.getMessage());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 文字列をJR-100のキーボードで入力するキーコードの並びに変換する。
+     * シフトキーを使わずに入力できる文字だけを扱う。
+     */
+    private static int[] toKeyCodes(String text) {
+        int[] codes = new int[text.length()];
+        for (int i = 0; i < text.length(); i++) {
+            char c = Character.toUpperCase(text.charAt(i));
+            if ((c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')) {
+                codes[i] = c;
+            }
+            else {
+                switch (c) {
+                case ' ':
+                    codes[i] = KeyEvent.VK_SPACE;
+                    break;
+                case '-':
+                    codes[i] = KeyEvent.VK_MINUS;
+                    break;
+                case ':':
+                    codes[i] = KeyEvent.VK_COLON;
+                    break;
+                case ';':
+                    codes[i] = KeyEvent.VK_SEMICOLON;
+                    break;
+                case '.':
+                    codes[i] = KeyEvent.VK_PERIOD;
+                    break;
+                case ',':
+                    codes[i] = KeyEvent.VK_COMMA;
+                    break;
+                default:
+                    throw new IllegalArgumentException("入力できない文字が含まれています: " + text);
+                }
+            }
+        }
+        return codes;
+    }
+
+    /*
+     * ROMの起動後にプログラムファイルを読み込み、コマンドのキー入力と電源断をイベントキューに登録する。
+     * エミュレーションスレッドで実行される。
+     */
+    private class LoadEvent extends EmulatorEvent {
+        private List<File> files;
+        private Result result;
+
+        LoadEvent(long clock, List<File> files, Result result) {
+            super(clock);
+            this.files = files;
+            this.result = result;
+        }
+
+        @Override
+        public void dispatch(Computer computer) {
+            MemorySystem m = computer.getHardware().getMemory();
+            for (File f : files) {
+                DataFile df;
+                if (DataFile.isProgFile(f)) {
+                    df = new ProgFormatFile(f);
+                }
+                else if (DataFile.isBasicTextFile(f)) {
+                    df = new BasicTextFormatFile(f);
+                }
+                else {
+                    df = new BinaryTextFormatFile(f);
+                }
+                Program p = df.load_jr100(m);
+                if (df.getErrorStatus() != DataFile.STATUS_SUCCESS) {
+                    result.loadError = f.getPath() + ": " + df.getErrorMessage();
+                    computer.setRunningStatus(Computer.STATUS_STOPPED);
+                    return;
+                }
+                p.setFile(f);
+                computer.setProgram(p);
+            }
+
+            EventQueue q = computer.getEventQueue();
+            long frame = getFrameClocks(computer);
+            long clock = getClock();
+            for (String c : commands) {
+                int[] codes = toKeyCodes(c);
+                for (int i = 0; i <= codes.length; i++) {
+                    int code = (i < codes.length) ? codes[i] : KeyEvent.VK_ENTER;
+                    q.add(new KeyPressedEvent(clock, code));
+                    clock += frame * KEY_FRAMES;
+                    q.add(new KeyReleasedEvent(clock, code));
+                    clock += frame * KEY_FRAMES;
+                }
+            }
+            result.runStartClock = clock;
+            q.add(new PowerOffEvent(clock + ((runCycles >= 0) ? runCycles : runFrames * frame)));
+        }
+    }
+
+    /**
+     * ROMイメージを返す。最初に呼び出したときに読み込み、以後は同じイメージを共有する。
+     *
+     * @throws IOException ROMファイルを読み込めないか、形式が不正な場合
+     */
+    synchronized byte[] getRomImage() throws IOException {
+        if (romImage == null) {
+            romImage = BasicRom.readImage(romFileName, JR100.ADDRESS_BASIC_ROM, JR100.LENGTH_BASIC_ROM);
+        }
+        return romImage;
+    }
+
+    List<File> getFiles() {
+        return files;
+    }
+
+    /**
+     * ヘッドレス構成のJR100を作成し、ROMの起動からプログラムの読み込み、コマンドの入力を経て
+     * 指定した長さだけ実行する。呼び出したスレッドで実行し、電源が切れるまで戻らない。
+     *
+     * ROMイメージは最初の実行時に読み込み、以後の実行で共有する。
+     *
+     * @param files 読み込むプログラムファイル
+     * @param config JR100の設定
+     * @return 実行結果
+     * @throws IOException ROMファイルを読み込めないか、形式が不正な場合
+     */
+    Result execute(List<File> files, JR100Config config) throws IOException {
+        Result result = new Result();
+        JR100 computer = new JR100(config, getRomImage());
+        long frame = (long)(computer.getRefreshRate() * config.getCpuClockFrequency());
+        computer.getEventQueue().add(new LoadEvent(bootFrames * frame, files, result));
+
+        long start = System.nanoTime();
+        computer.powerOn();
+        result.wallTime = System.nanoTime() - start;
+        result.computer = computer;
+        return result;
+    }
+
+    private static long getFrameClocks(Computer computer) {
+        return (long)(computer.getRefreshRate() * computer.getClockFrequency());
+    }
+
+    private static JR100R6522 getVia(JR100 computer) {
+        return (JR100R6522)computer.getHardware().getMemory().getMemory(JR100R6522.class);
+    }
+
+    /**
+     * 画面の文字コードを返す。
+     *
+     * @return 行ごとの文字コード(0-255)
+     */
+    public static int[][] getScreenCodes(JR100 computer) {
+        MemorySystem m = computer.getHardware().getMemory();
+        int[][] codes = new int[SCREEN_ROWS][SCREEN_COLUMNS];
+        for (int y = 0; y < SCREEN_ROWS; y++) {
+            for (int x = 0; x < SCREEN_COLUMNS; x++) {
+                codes[y][x] = m.load8(ADDRESS_VRAM + y * SCREEN_COLUMNS + x) & 0xff;
+            }
+        }
+        return codes;
+    }
+
+    /**
+     * 画面をテキストに変換する。
+     * 反転文字は元の文字として、表示できない文字とユーザ定義文字は'.'として出力する。
+     */
+    public static String getScreenText(JR100 computer) {
+        boolean user_defined = getVia(computer).getCurrentFont() == JR100Display.FONT_USER_DEFINED;
+        StringBuilder sb = new StringBuilder();
+        for (int[] row : getScreenCodes(computer)) {
+            for (int code : row) {
+                if (code >= 128 && user_defined) {
+                    sb.append('.');
+                    continue;
+                }
+                char c = (char)(code & 0x7f);
+                sb.append((c >= 0x20 && c < 0x7f) ? c : '.');
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 画面を白黒の画像として描画する。JR100Displayと同じ規則で文字プレーンとフォントを選ぶ。
+     */
+    public static BufferedImage getScreenImage(JR100 computer) {
+        MemorySystem m = computer.getHardware().getMemory();
+        int plane = getVia(computer).getCurrentFont();
+        int font = ((BasicRom)m.getMemory(BasicRom.class)).getFontAddress();
+        BufferedImage image = new BufferedImage(
+                SCREEN_COLUMNS * PIXELS_PER_CHARACTER,
+                SCREEN_ROWS * PIXELS_PER_CHARACTER,
+                BufferedImage.TYPE_BYTE_BINARY);
+        int[][] codes = getScreenCodes(computer);
+        for (int y = 0; y < SCREEN_ROWS; y++) {
+            for (int x = 0; x < SCREEN_COLUMNS; x++) {
+                int code = codes[y][x];
+                for (int line = 0; line < PIXELS_PER_CHARACTER; line++) {
+                    int value;
+                    if (code < 128) {
+                        value = m.load8(font + code * 8 + line);
+                    }
+                    else if (plane == JR100Display.FONT_USER_DEFINED) {
+                        value = m.load8(ADDRESS_UDC + (code - 128) * 8 + line);
+                    }
+                    else {
+                        value = ~m.load8(font + (code - 128) * 8 + line);
+                    }
+                    for (int bit = 0; bit < PIXELS_PER_CHARACTER; bit++) {
+                        int rgb = ((value << bit) & 0x80) != 0 ? 0xffffff : 0x000000;
+                        image.setRGB(x * PIXELS_PER_CHARACTER + bit, y * PIXELS_PER_CHARACTER + line, rgb);
+                    }
+                }
+            }
+        }
+        return image;
+    }
+
+    /**
+     * 画面のハッシュ値を16進数の文字列で返す。表示が同じ画面は同じ値になる。
+     */
+    public static String getScreenHash(JR100 computer) {
+        BufferedImage image = getScreenImage(computer);
+        byte[] pixels = ((DataBufferByte)image.getRaster().getDataBuffer()).getData();
+        try {
+            StringBuilder sb = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-1").digest(pixels)) {
+                sb.append(String.format("%02x", b & 0xff));
+            }
+            return sb.toString();
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void dumpMemory(PrintWriter out, MemorySystem m, int start, int end) {
+        out.printf("[ram %04x-%04x]%n", start, end);
+        for (int line = start & ~0x0f; line <= end; line += 16) {
+            out.printf("%04x:", line);
+            for (int a = line; a < line + 16; a++) {
+                if (a < start || a > end) {
+                    out.print("   ");
+                }
+                else {
+                    out.printf(" %02x", m.load8(a) & 0xff);
+                }
+            }
+            out.println();
+        }
+    }
+
+    private static void dumpRegisters(PrintWriter out, MB8861 cpu) {
+        out.println("[registers]");
+        out.printf("A=%02x%n", cpu.A & 0xff);
+        out.printf("B=%02x%n", cpu.B & 0xff);
+        out.printf("IX=%04x%n", cpu.IX & 0xffff);
+        out.printf("SP=%04x%n", cpu.SP & 0xffff);
+        out.printf("PC=%04x%n", cpu.PC & 0xffff);
+        out.printf("CCR=%02x%n", cpu.getCCR());
+    }
+
+    private int run() {
+        Result result;
+        try {
+            result = execute(files, new JR100Config(Configuration.getProperties()));
+        }
+        catch (IOException e) {
+            System.err.println(e.getMessage());
+            return EXIT_ERROR;
+        }
+        if (result.loadError != null) {
+            System.err.println(result.loadError);
+            return EXIT_ERROR;
+        }
+        JR100 computer = result.computer;
+        long wall = result.wallTime;
+
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+        long clocks = computer.getClockCount();
+        double seconds = wall / 1E9;
+        out.println("[stats]");
+        out.printf("clocks=%d%n", clocks);
+        out.printf("run_clocks=%d%n", clocks - result.runStartClock);
+        out.printf("frames=%d%n", computer.getFrameCount());
+        out.printf("wall_time_ms=%.3f%n", wall / 1E6);
+        out.printf("emulated_mhz=%.3f%n", (seconds > 0) ? clocks / seconds / 1E6 : 0.0);
+        out.printf("speed_ratio=%.2f%n", (seconds > 0) ? clocks / seconds / computer.getClockFrequency() : 0.0);
+        out.printf("unmapped_loads=%d%n", computer.getHardware().getMemory().getUnmappedLoadCount());
+        out.printf("unmapped_stores=%d%n", computer.getHardware().getMemory().getUnmappedStoreCount());
+        out.printf("screen_hash=%s%n", getScreenHash(computer));
+
+        if (dumpRegisters) {
+            dumpRegisters(out, (MB8861)computer.getCPU());
+        }
+        for (int[] r : ramRegions) {
+            dumpMemory(out, computer.getHardware().getMemory(), r[0], r[1]);
+        }
+        if (vramTextFile != null) {
+            if (vramTextFile.equals("-")) {
+                out.println("[vram]");
+                out.print(getScreenText(computer));
+            }
+            else {
+                try (PrintWriter w = new PrintWriter(new OutputStreamWriter(new FileOutputStream(vramTextFile), StandardCharsets.UTF_8))) {
+                    w.print(getScreenText(computer));
+                }
+                catch (IOException e) {
+                    System.err.println(vramTextFile + ": " + e.getMessage());
+                    return EXIT_ERROR;
+                }
+            }
+        }
+        out.flush();
+        if (vramPngFile != null) {
+            try {
+                ImageIO.write(getScreenImage(computer), "png", new File(vramPngFile));
+            }
+            catch (IOException e) {
+                System.err.println(vramPngFile + ": " + e.getMessage());
+                return EXIT_ERROR;
+            }
+        }
+        return EXIT_SUCCESS;
+    }
+
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+
+        JR100Batch batch = new JR100Batch();
+        if (!batch.parseArguments(args)) {
+            usage(System.err);
+            System.exit(EXIT_USAGE);
+        }
+        System.exit(batch.run());
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ * JR-100 Emulator Version 2
+ *
+ * Copyright (c) 2006-2020 Kenichi Miyata
+ *
+ * This software is released under the the MIT license
+ * http://opensource.org/licenses/mit-license.php
+ */
+package jp.asamomiji.emulator.jr100;
+
+import java.util.Properties;
+
+import jp.asamomiji.emulator.Computer;
+
+/*
+ * 1台のJR-100の設定を表す不変クラス
+ *
+ * 作成時に設定値を複製して保持し、以後は変更されない。変更した設定が必要な場合はwithで新しいオブジェクトを作る。
+ * 不変なので、複数のJR-100やスレッドで共有できる。
+ * 各JR-100には設定値の複製を渡すため、JR-100の側から設定が書き換えられることもない。
+ */
+public final class JR100Config {
+    private final Properties properties;
+
+    /**
+     * すべて既定値の設定を作る。
+     */
+    public JR100Config() {
+        this(new Properties());
+    }
+
+    /**
+     * 設定値を複製して設定を作る。
+     *
+     * @param properties 設定値。Applicationの設定ファイルと同じキーを使う。
+     */
+    public JR100Config(Properties properties) {
+        this.properties = copy(properties);
+    }
+
+    private static Properties copy(Properties source) {
+        Properties p = new Properties();
+        for (String key : source.stringPropertyNames()) {
+            p.setProperty(key, source.getProperty(key));
+        }
+        return p;
+    }
+
+    /**
+     * 指定した設定値だけを変えた新しい設定を返す。
+     *
+     * @param key 設定値のキー
+     * @param value 設定値
+     * @return 新しい設定
+     */
+    public JR100Config with(String key, String value) {
+        Properties p = copy(properties);
+        p.setProperty(key, value);
+        return new JR100Config(p);
+    }
+
+    /**
+     * 設定値の複製を返す。
+     */
+    public Properties toProperties() {
+        return copy(properties);
+    }
+
+    public boolean getUseExtendedRam() {
+        return JR100.getPropertyOfUseExtendedRam(properties);
+    }
+
+    public int getCpuClockFrequency() {
+        return JR100.getPropertyOfCpuClockFrequency(properties);
+    }
+
+    public int getCpuEngine() {
+        return JR100.getPropertyOfCpuEngine(properties);
+    }
+
+    public boolean getIdleDetection() {
+        return JR100.getPropertyOfIdleDetection(properties);
+    }
+
+    public boolean getFrameSkip() {
+        return Computer.getPropertyOfFrameSkip(properties);
+    }
+
+    public int getFrameSkipMax() {
+        return Computer.getPropertyOfFrameSkipMax(properties);
+    }
+
+    public int getFramePacer() {
+        return Computer.getPropertyOfFramePacer(properties);
+    }
+}
@@ -0,0 +1,276 @@
+/**
+ * JR-100 Emulator Version 2
+ *
+ * Copyright (c) 2006-2020 Kenichi Miyata
+ *
+ * This software is released under the the MIT license
+ * http://opensource.org/licenses/mit-license.php
+ */
+package jp.asamomiji.emulator.jr100;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import jp.asamomiji.emulator.Configuration;
+import jp.asamomiji.emulator.MemorySystem;
+import jp.asamomiji.emulator.file.DataFile;
+
+/*
+ * 多数のプログラムファイルをまとめて実行するコマンドラインツール
+ *
+ * ファイルごとに独立したヘッドレス構成のJR100を作り、フォーク/ジョインプールで並列に実行する。
+ * 各JR100は不変の設定とROMイメージだけを共有する。
+ * 実行の手順と長さはJR100Batchと同じで、プログラムごとの結果を1行ずつタブ区切りで出力した後、
+ * 全体の統計を"名前=値"の形式で出力する。
+ */
+public final class JR100Corpus {
+    public final static String STATUS_OK = "ok";
+    public final static String STATUS_LOAD_ERROR = "load_error";
+    public final static String STATUS_CRASH = "crash";
+
+    private final static int EXIT_SUCCESS = 0;
+    private final static int EXIT_USAGE = 1;
+    private final static int EXIT_FAILURE = 2;
+
+    /*
+     * 1つのプログラムの実行結果
+     */
+    private static final class Entry {
+        final File file;
+        String status;
+        String screenHash = "-";
+        long clocks;
+        long wallTime;
+        long unmappedLoads;
+        long unmappedStores;
+        String message = "";
+
+        Entry(File file) {
+            this.file = file;
+        }
+    }
+
+    /*
+     * 結果の配列を二分しながら並列に実行するタスク
+     */
+    private final class RunTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Entry[] entries;
+        private final int from;
+        private final int to;
+
+        RunTask(Entry[] entries, int from, int to) {
+            this.entries = entries;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                runEntry(entries[from]);
+            }
+            else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new RunTask(entries, from, middle), new RunTask(entries, middle, to));
+            }
+        }
+    }
+
+    private JR100Batch batch = new JR100Batch();
+    private JR100Config config;
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    private JR100Corpus() {
+    }
+
+    private static void usage(PrintStream out) {
+        out.println("usage: JR100Corpus [-threads <n>] [options] <file|directory>...");
+        out.println("  -threads <n>         並列に実行するプログラムの数 (既定値: CPUのコア数)");
+        out.println("ディレクトリを指定した場合は、その中のプログラムファイル(*.prg, *.bas, *.txt)をすべて実行する。");
+        out.println("その他のオプションはJR100Batchと同じで、画面、メモリ、レジスタの出力は使わない。");
+        JR100Batch.usage(out);
+    }
+
+    private boolean parseArguments(String[] args) {
+        List<String> rest = new ArrayList<String>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("-threads")) {
+                    threads = Integer.parseInt(args[++i]);
+                    if (threads < 1) {
+                        throw new IllegalArgumentException("スレッド数が不正です。");
+                    }
+                }
+                else {
+                    rest.add(args[i]);
+                }
+            }
+        }
+        catch (ArrayIndexOutOfBoundsException e) {
+            System.err.println("オプションの引数がありません。");
+            return false;
+        }
+        catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return false;
+        }
+        return batch.parseArguments(rest.toArray(new String[rest.size()]));
+    }
+
+    private static boolean isProgramFile(File f) {
+        String ext = DataFile.getExtension(f.getName());
+        if (ext == null) {
+            return false;
+        }
+        ext = ext.toLowerCase();
+        return ext.equals("prg") || ext.equals("bas") || ext.equals("txt");
+    }
+
+    private static void collectFiles(File f, List<File> result) {
+        if (f.isDirectory()) {
+            File[] children = f.listFiles();
+            if (children == null) {
+                return;
+            }
+            Arrays.sort(children);
+            for (File c : children) {
+                if (c.isDirectory() || isProgramFile(c)) {
+                    collectFiles(c, result);
+                }
+            }
+        }
+        else {
+            result.add(f);
+        }
+    }
+
+    /*
+     * 1つのプログラムを専用のJR100で実行する。例外はそのプログラムの異常終了として記録する。
+     */
+    private void runEntry(Entry e) {
+        long start = System.nanoTime();
+        try {
+            JR100Batch.Result r = batch.execute(Collections.singletonList(e.file), config);
+            JR100 computer = r.computer;
+            MemorySystem m = computer.getHardware().getMemory();
+            e.clocks = computer.getClockCount();
+            e.wallTime = r.wallTime;
+            e.unmappedLoads = m.getUnmappedLoadCount();
+            e.unmappedStores = m.getUnmappedStoreCount();
+            if (r.loadError != null) {
+                e.status = STATUS_LOAD_ERROR;
+                e.message = r.loadError;
+            }
+            else {
+                e.status = STATUS_OK;
+                e.screenHash = JR100Batch.getScreenHash(computer);
+            }
+        }
+        catch (Throwable t) {
+            e.status = STATUS_CRASH;
+            e.wallTime = System.nanoTime() - start;
+            e.message = t.toString();
+        }
+    }
+
+    private static double mhz(long clocks, long nanos) {
+        return (nanos > 0) ? clocks * 1E3 / nanos : 0.0;
+    }
+
+    private static String escape(String s) {
+        return s.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+    }
+
+    private int run() {
+        List<File> files = new ArrayList<File>();
+        for (File f : batch.getFiles()) {
+            collectFiles(f, files);
+        }
+        if (files.isEmpty()) {
+            System.err.println("プログラムファイルがありません。");
+            return EXIT_USAGE;
+        }
+        // ROMを読み込めない場合は、すべてのプログラムが同じ理由で失敗するため、実行せずに終了する。
+        try {
+            batch.getRomImage();
+        }
+        catch (IOException e) {
+            System.err.println(e.getMessage());
+            return EXIT_FAILURE;
+        }
+        config = new JR100Config(Configuration.getProperties());
+        Entry[] entries = new Entry[files.size()];
+        for (int i = 0; i < entries.length; i++) {
+            entries[i] = new Entry(files.get(i));
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        long start = System.nanoTime();
+        pool.invoke(new RunTask(entries, 0, entries.length));
+        long wall = System.nanoTime() - start;
+        pool.shutdown();
+
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+        out.println("file\tstatus\tscreen_hash\tclocks\twall_time_ms\temulated_mhz\tunmapped_loads\tunmapped_stores\tmessage");
+        long total_clocks = 0;
+        long unmapped = 0;
+        int ok = 0;
+        int load_errors = 0;
+        int crashes = 0;
+        for (Entry e : entries) {
+            out.printf("%s\t%s\t%s\t%d\t%.3f\t%.3f\t%d\t%d\t%s%n",
+                    escape(e.file.getPath()), e.status, e.screenHash, e.clocks, e.wallTime / 1E6,
+                    mhz(e.clocks, e.wallTime), e.unmappedLoads, e.unmappedStores, escape(e.message));
+            total_clocks += e.clocks;
+            if (e.unmappedLoads + e.unmappedStores > 0) {
+                unmapped++;
+            }
+            if (e.status.equals(STATUS_OK)) {
+                ok++;
+            }
+            else if (e.status.equals(STATUS_LOAD_ERROR)) {
+                load_errors++;
+            }
+            else {
+                crashes++;
+            }
+        }
+        out.println();
+        out.println("[stats]");
+        out.printf("programs=%d%n", entries.length);
+        out.printf("ok=%d%n", ok);
+        out.printf("load_errors=%d%n", load_errors);
+        out.printf("crashes=%d%n", crashes);
+        out.printf("programs_with_unmapped_access=%d%n", unmapped);
+        out.printf("threads=%d%n", threads);
+        out.printf("clocks=%d%n", total_clocks);
+        out.printf("wall_time_ms=%.3f%n", wall / 1E6);
+        out.printf("emulated_mhz=%.3f%n", mhz(total_clocks, wall));
+        out.printf("programs_per_second=%.3f%n", (wall > 0) ? entries.length * 1E9 / wall : 0.0);
+        out.flush();
+        return (ok == entries.length) ? EXIT_SUCCESS : EXIT_FAILURE;
+    }
+
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+
+        JR100Corpus corpus = new JR100Corpus();
+        if (!corpus.parseArguments(args)) {
+            usage(System.err);
+            System.exit(EXIT_USAGE);
+        }
+        System.exit(corpus.run());
+    }
+}
@@ -10,25 +10,32 @@ package jp.asamomiji.emulator.jr100;
 
 import java.awt.Dimension;
 import java.awt.Graphics;
-import java.awt.Point;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBuffer;
-import java.awt.image.DirectColorModel;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.IndexColorModel;
 import java.awt.image.Raster;
-import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.StringTokenizer;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 
+import javax.swing.SwingUtilities;
+
 import jp.asamomiji.emulator.AbstractDisplay;
 import jp.asamomiji.emulator.Application;
 import jp.asamomiji.emulator.Computer;
 import jp.asamomiji.emulator.MemorySystem;
 import jp.asamomiji.emulator.StateSet;
+import jp.asamomiji.emulator.TripleBuffer;
 
 @SuppressWarnings("serial")
 public class JR100Display extends AbstractDisplay {
@@ -42,8 +49,66 @@ public class JR100Display extends AbstractDisplay {
     private int userDefinedRam;
     private int videoRam;
     private int characterRom;
-    private BufferedImage[][] fonts = new BufferedImage[2][256];
-    private BufferedImage[] currentFont;
+
+    /*
+     * 文字の形はパレット番号で保持し、色はパレットで与える。
+     * パレット番号は(ビット値 << 8) | 文字コードで、colorMap[ビット値][文字コード]の色になる。
+     * グリフアトラスは幅8ドットで、(プレーン * 256 + 文字コード)の順に縦に並べる。
+     * 画面と拡大したグリフはRGBの画素で持つ。
+     * インデックスカラーの画像はJava2Dの描画で画素ごとの変換が必要になるため、画面には使わない。
+     */
+    private final static int PALETTE_SIZE = 2 * 256;
+    private WritableRaster glyphRaster;
+    private short[] glyphs;
+    private volatile BufferedImage glyphAtlas;
+    private volatile int[] palette;
+
+    /*
+     * 表示倍率に合わせて拡大し、パレットで色に変換したグリフと画面
+     * 倍率かパレットが変わったときだけ作り直し、フレームごとの描画は拡大も色の変換も伴わない複写だけにする。
+     */
+    private int scaledScaling = 0;
+    private int[] scaledGlyphs;
+    private int[] screenPixels;
+    private BufferedImage screen;
+    // 拡大したグリフを作ったときのパレット。イベントディスパッチスレッドだけが使う。
+    private int[] shownPalette;
+
+    /*
+     * 1フレーム分の画面の状態
+     * ユーザ定義文字RAMとVRAMの内容、および文字プレーンを保持する。
+     */
+    private static final class Frame {
+        final byte[] ram = new byte[FRAME_RAM_SIZE];
+        int plane;
+    }
+    private final static int FRAME_RAM_SIZE = 0x400;
+    private final static int FRAME_VRAM_OFFSET = 0x100;
+
+    // エミュレーションスレッドが扱う状態
+    private int currentPlane = FONT_NORMAL;
+    private boolean modified = true;
+    private TripleBuffer<Frame> frames = new TripleBuffer<Frame>(new Frame(), new Frame(), new Frame());
+
+    // 画面を更新するスレッド(イベントディスパッチスレッド)が扱う状態
+    private byte[] shownRam = new byte[FRAME_RAM_SIZE];
+    private int shownPlane = -1;
+    private BitSet dirtyGlyphs = new BitSet(256);
+    private AtomicBoolean updateScheduled = new AtomicBoolean(false);
+    private Runnable updater = new Runnable() {
+        public void run() {
+            long start = System.nanoTime();
+            updateScreen();
+            updateCost = System.nanoTime() - start;
+        }
+    };
+
+    // 画面の更新時間の移動平均に新しい値を反映させる割合
+    private final static double RENDER_COST_WEIGHT = 0.1;
+    // 直近の裏画面の更新時間と描画時間(ナノ秒)
+    private long updateCost = 0;
+    private long paintCost = 0;
+    private volatile double averageRenderCost = 0;
 
     private int[][] defaultColorMap = new int[][] {
         {
@@ -93,9 +158,12 @@ public class JR100Display extends AbstractDisplay {
         userDefinedRam = memory.getMemory(UserDefinedCharacterRam.class).getStartAddress();
         videoRam = memory.getMemory(VideoRam.class).getStartAddress();
         characterRom = ((BasicRom)memory.getMemory(BasicRom.class)).getFontAddress();
+        glyphRaster = Raster.createInterleavedRaster(DataBuffer.TYPE_USHORT, PPC, 2 * 256 * PPC, 1, null);
+        glyphs = ((DataBufferUShort)glyphRaster.getDataBuffer()).getData();
+        createFonts();
         initializeColors();
         initializeFonts();
-        currentFont = fonts[0];
+        createScaledScreen(scaling);
         setPreferredSize(getPreferredSize());
         setFocusable(true);
     }
@@ -224,117 +292,261 @@ public class JR100Display extends AbstractDisplay {
         applyDisplayColor();
     }
 
+    /*
+     * 色の変更はパレットを差し替えるだけで、グリフのパレット番号は作り直さない。
+     * 拡大したグリフと画面は次の描画時に新しいパレットで作り直す。
+     */
     @Override
     protected void initializeFonts() {
-        int[] bitmasks = new int[] {0xff0000, 0x00ff00, 0x0000ff};
-        DirectColorModel cm = new DirectColorModel(24, bitmasks[0], bitmasks[1], bitmasks[2]);
-        for (int i = 0; i < fonts.length; i++) {
-            for (int j = 0; j < fonts[i].length; j++) {
-                fonts[i][j] =
-                    new BufferedImage(
-                        cm,
-                        Raster.createWritableRaster(
-                            new SinglePixelPackedSampleModel(DataBuffer.TYPE_INT, PPC, PPC, bitmasks),
-                            new Point()),
-                        false,
-                        null);
-            }
+        int[] p = new int[PALETTE_SIZE];
+        byte[] r = new byte[PALETTE_SIZE];
+        byte[] g = new byte[PALETTE_SIZE];
+        byte[] b = new byte[PALETTE_SIZE];
+        for (int i = 0; i < PALETTE_SIZE; i++) {
+            int rgb = colorMap[i >> 8][i & 0xff];
+            p[i] = rgb & 0xffffff;
+            r[i] = (byte)(rgb >> 16);
+            g[i] = (byte)(rgb >> 8);
+            b[i] = (byte)rgb;
         }
+        glyphAtlas = new BufferedImage(new IndexColorModel(16, PALETTE_SIZE, r, g, b), glyphRaster, false, null);
+        palette = p;
+        repaint();
+    }
 
+    /*
+     * ROM上のフォントからグリフを生成する。
+     * CMODE1時の反転文字(ユーザ定義文字)は画面の更新時に生成する。
+     */
+    private void createFonts() {
         for (int code = 0; code < 128; code++) {
-            DataBuffer db0a = fonts[FONT_NORMAL][code].getRaster().getDataBuffer();
-            DataBuffer db0b = fonts[FONT_NORMAL][code + 128].getRaster().getDataBuffer();
-            DataBuffer db1a = fonts[FONT_USER_DEFINED][code].getRaster().getDataBuffer();
             for (int line = 0; line < PPC; line++) {
                 int value = memory.load8(characterRom + code * 8 + line);
                 for (int bit = 0; bit < PPC; bit++) {
                     int index = line * PPC + (PPC - bit - 1);
 
                     // CMODE0時の通常文字 (0x00-0x7f)
-                    db0a.setElem(index, colorMap[value & 0x01][code]);
+                    glyphs[glyphOffset(FONT_NORMAL, code) + index] = (short)(((value & 0x01) << 8) | code);
 
                     // CMODE1時の通常文字 (0x00-0x7f)
-                    db1a.setElem(index, colorMap[value & 0x01][code]);
+                    glyphs[glyphOffset(FONT_USER_DEFINED, code) + index] = (short)(((value & 0x01) << 8) | code);
 
                     // CMODE0時の反転文字 (0x80-0xff)
-                    db0b.setElem(index, colorMap[1 - (value & 0x01)][code + 128]);
+                    glyphs[glyphOffset(FONT_NORMAL, code + 128) + index] = (short)(((1 - (value & 0x01)) << 8) | (code + 128));
 
                     value >>= 1;
                 }
             }
         }
+    }
 
-        // ユーザ定義文字生成
-        for (int code = 128; code < 256; code++) {
-            DataBuffer db1b = fonts[FONT_USER_DEFINED][code].getRaster().getDataBuffer();
-            for (int line = 0; line < PPC; line++) {
-                int value = memory.load8(userDefinedRam + (code - 128) * PPC + line);
-                for (int bit = 0; bit < PPC; bit++) {
-                    // CMODE1時の反転文字 (0x80-0xff)
-                    db1b.setElem(line * PPC + (PPC - bit - 1), colorMap[value & 0x01][code]);
-                    value >>= 1;
+    private static int glyphOffset(int plane, int code) {
+        return (plane * 256 + code) * PPC * PPC;
+    }
+
+    /**
+     * ユーザ定義文字RAMまたはVRAMが書き換えられたことを通知する。
+     * どの文字やフォントが変化したかは、画面の更新時に前回描画したフレームとの比較で求める。
+     */
+    public void markModified() {
+        modified = true;
+    }
+
+    public Dimension getPreferredSize() {
+        return new Dimension(width * scaling, height * scaling);
+    }
+
+    public void setCurrentFont(int plane) {
+        if (currentPlane != plane) {
+            modified = true;
+        }
+        currentPlane = plane;
+    }
+
+    /*
+     * 画面が変化していれば、ユーザ定義文字RAMとVRAMと文字プレーンの複製をトリプルバッファで公開し、
+     * イベントディスパッチスレッドに画面の更新を依頼する。
+     * エミュレーションスレッドはSwingの描画を待たない。
+     */
+    @Override
+    public void refresh() {
+        boolean published = false;
+        if (modified) {
+            modified = false;
+            Frame f = frames.getBackBuffer();
+            for (int i = 0; i < FRAME_RAM_SIZE; i++) {
+                f.ram[i] = memory.load8(userDefinedRam + i);
+            }
+            f.plane = currentPlane;
+            frames.publish();
+            published = true;
+        }
+        if (published && updateScheduled.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(updater);
+        }
+    }
+
+    @Override
+    public boolean isUpdatePending() {
+        return updateScheduled.get();
+    }
+
+    @Override
+    public double getAverageRenderCost() {
+        return averageRenderCost;
+    }
+
+    /*
+     * 最新のフレームと前回描画したフレームとの差分だけを裏画面に描画し、変化した範囲だけを再描画する。
+     */
+    private void updateScreen() {
+        updateScheduled.set(false);
+        if (!frames.update()) {
+            return;
+        }
+        Frame f = frames.getFrontBuffer();
+        boolean full = f.plane != shownPlane;
+        if (scaling != scaledScaling) {
+            createScaledScreen(scaling);
+            full = true;
+        }
+        else if (palette != shownPalette) {
+            scaleGlyphs();
+            full = true;
+        }
+
+        dirtyGlyphs.clear();
+        if (f.plane == FONT_USER_DEFINED) {
+            for (int code = 128; code < 256; code++) {
+                int from = (code - 128) * PPC;
+                if (full || !Arrays.equals(f.ram, from, from + PPC, shownRam, from, from + PPC)) {
+                    createUserDefinedFont(code, f.ram, from);
+                    dirtyGlyphs.set(code);
                 }
             }
         }
-//        try {
-//            ImageIO.write(fonts, "png", new File("fonts.png"));
-//        }
-//        catch (Exception e) {
-//            e.printStackTrace();
-//        }
+
+        drawCells(f.ram, f.plane, full, true);
+        System.arraycopy(f.ram, 0, shownRam, 0, FRAME_RAM_SIZE);
+        shownPlane = f.plane;
     }
 
-    public void updateFont(int code, int line, int value) {
-        DataBuffer db1b = fonts[FONT_USER_DEFINED][code + 128].getRaster().getDataBuffer();
-        for (int bit = 0; bit < PPC; bit++) {
-            db1b.setElem(line * PPC + PPC - bit - 1, colorMap[value & 0x01][code + 128]);
-            value >>= 1;
+    /*
+     * 変化した文字を裏画面に描画する。
+     *
+     * @param ram フレームのユーザ定義文字RAMとVRAM
+     * @param plane 文字プレーン
+     * @param full すべての文字を描画する場合はtrue
+     * @param repaint 描画した範囲の再描画を要求する場合はtrue
+     */
+    private void drawCells(byte[] ram, int plane, boolean full, boolean repaint) {
+        int s = scaledScaling;
+        int gw = px * s;
+        int gh = py * s;
+        int sw = width * s;
+        for (int y = 0; y < cy; y++) {
+            int minX = cx;
+            int maxX = -1;
+            for (int x = 0; x < cx; x++) {
+                int index = FRAME_VRAM_OFFSET + x + y * cx;
+                int code = ram[index] & 0xff;
+                if (!full && ram[index] == shownRam[index] && !dirtyGlyphs.get(code)) {
+                    continue;
+                }
+                int glyph = glyphOffset(plane, code) * s * s;
+                int offset = y * gh * sw + x * gw;
+                for (int line = 0; line < gh; line++) {
+                    System.arraycopy(scaledGlyphs, glyph + line * gw, screenPixels, offset + line * sw, gw);
+                }
+                minX = Math.min(minX, x);
+                maxX = x;
+            }
+            if (repaint && maxX >= 0) {
+                repaint(minX * gw, y * gh, (maxX - minX + 1) * gw, gh);
+            }
         }
     }
 
-    public Dimension getPreferredSize() {
-        return new Dimension(width * scaling, height * scaling);
+    private void createUserDefinedFont(int code, byte[] ram, int from) {
+        int offset = glyphOffset(FONT_USER_DEFINED, code);
+        for (int line = 0; line < PPC; line++) {
+            int value = ram[from + line];
+            for (int bit = 0; bit < PPC; bit++) {
+                glyphs[offset + line * PPC + (PPC - bit - 1)] = (short)(((value & 0x01) << 8) | code);
+                value >>= 1;
+            }
+        }
+        scaleGlyph(FONT_USER_DEFINED, code);
     }
 
-    public void setCurrentFont(int plane) {
-        currentFont = fonts[plane];
+    /*
+     * 指定した倍率の拡大グリフと裏画面を作る。裏画面の内容は呼び出し側で描画する。
+     */
+    private void createScaledScreen(int s) {
+        scaledScaling = s;
+        scaledGlyphs = new int[glyphs.length * s * s];
+        scaleGlyphs();
+        screen = new BufferedImage(width * s, height * s, BufferedImage.TYPE_INT_RGB);
+        screenPixels = ((DataBufferInt)screen.getRaster().getDataBuffer()).getData();
     }
 
+    /*
+     * 現在のパレットですべてのグリフを拡大し直す。
+     */
+    private void scaleGlyphs() {
+        shownPalette = palette;
+        for (int plane = 0; plane < 2; plane++) {
+            for (int code = 0; code < 256; code++) {
+                scaleGlyph(plane, code);
+            }
+        }
+    }
+
+    private void scaleGlyph(int plane, int code) {
+        int[] p = shownPalette;
+        int s = scaledScaling;
+        int gw = PPC * s;
+        int src = glyphOffset(plane, code);
+        int dst = src * s * s;
+        for (int y = 0; y < gw; y++) {
+            for (int x = 0; x < gw; x++) {
+                scaledGlyphs[dst + y * gw + x] = p[glyphs[src + (y / s) * PPC + x / s]];
+            }
+        }
+    }
+
+    /*
+     * 拡大済みの裏画面をそのまま描画する。
+     * 表示倍率やパレットが変わった直後は、前回描画したフレームで裏画面を作り直す。
+     */
     @Override
     protected void renderDisplay(Graphics g) {
-        for (int x = 0; x < cx; x++) {
-            for (int y = 0; y < cy; y++) {
-                int value = memory.load8(videoRam + x + y * cx) & 0xff;
-                g.drawImage(
-                    currentFont[value],
-                    x * px * scaling,
-                    y * py * scaling,
-                    (x + 1) * px * scaling,
-                    (y + 1) * py * scaling,
-                    0,
-                    0,
-                    px,
-                    py,
-                    null);
-            }
+        long start = System.nanoTime();
+        boolean changed = false;
+        if (scaling != scaledScaling) {
+            createScaledScreen(scaling);
+            changed = true;
+        }
+        else if (palette != shownPalette) {
+            scaleGlyphs();
+            changed = true;
         }
+        if (changed && shownPlane >= 0) {
+            drawCells(shownRam, shownPlane, true, false);
+        }
+        g.drawImage(screen, 0, 0, null);
+        paintCost = System.nanoTime() - start;
+        averageRenderCost += ((updateCost + paintCost) - averageRenderCost) * RENDER_COST_WEIGHT;
     }
 
-    public BufferedImage[][] getFonts() {
-        return fonts;
+    public BufferedImage getGlyphAtlas() {
+        return glyphAtlas;
     }
 
     @Override
     public void saveState(StateSet ss) {
         super.saveState(ss);
-        int index;
-        if (currentFont == fonts[0]) {
-            index = 0;
-        }
-        else {
-            index = 1;
-        }
-        ss.set("JR100Display.currentFont", index);
+        ss.set("JR100Display.currentFont", currentPlane);
     }
 
     @Override
@@ -343,6 +555,7 @@ public class JR100Display extends AbstractDisplay {
         initializeFonts();
         int index;
         index = (Integer)ss.get("JR100Display.currentFont");
-        currentFont = fonts[index];
+        setCurrentFont(index);
+        modified = true;
     }
 }
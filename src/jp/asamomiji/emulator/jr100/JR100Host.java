@@ -0,0 +1,88 @@
+/**
+ * JR-100 Emulator Version 2
+ *
+ * Copyright (c) 2006-2020 Kenichi Miyata
+ *
+ * This software is released under the the MIT license
+ * http://opensource.org/licenses/mit-license.php
+ */
+package jp.asamomiji.emulator.jr100;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+import jp.asamomiji.emulator.FrameScheduler;
+
+/*
+ * 1つのJVMで多数のJR-100を動かすためのホスト
+ *
+ * ROMイメージを一度だけ読み込んで各JR-100で共有し、JR-100ごとに設定を持たせる。
+ * 作成するJR-100はヘッドレス構成で、フレームループはFrameSchedulerで1フレームずつ実行するため、
+ * JR-100の数が増えてもスレッド数は増えない。
+ */
+public final class JR100Host {
+    private final byte[] romImage;
+    private final FrameScheduler scheduler;
+    private final boolean ownScheduler;
+
+    /**
+     * ROMファイルを読み込んでホストを作る。JR-100はホストが作るスケジューラで実行する。
+     *
+     * @param rom_file_name BASIC ROMのファイル名
+     * @throws IOException ROMファイルを読み込めないか、形式が不正な場合
+     */
+    public JR100Host(String rom_file_name) throws IOException {
+        this(BasicRom.readImage(rom_file_name, JR100.ADDRESS_BASIC_ROM, JR100.LENGTH_BASIC_ROM),
+                new FrameScheduler(), true);
+    }
+
+    /**
+     * 読み込み済みのROMイメージと実行用のスケジューラを指定してホストを作る。
+     * スケジューラは呼び出し側で終了させる。
+     *
+     * @param rom_image BASIC ROMのイメージ
+     * @param scheduler JR-100を実行するスケジューラ
+     */
+    public JR100Host(byte[] rom_image, FrameScheduler scheduler) {
+        this(rom_image, scheduler, false);
+    }
+
+    private JR100Host(byte[] rom_image, FrameScheduler scheduler, boolean own_scheduler) {
+        if (rom_image.length != JR100.LENGTH_BASIC_ROM) {
+            throw new IllegalArgumentException("ROMイメージの長さ(" + rom_image.length + ")が不正です。");
+        }
+        this.romImage = rom_image;
+        this.scheduler = scheduler;
+        this.ownScheduler = own_scheduler;
+    }
+
+    /**
+     * 指定した設定でJR-100を作る。電源は入れない。
+     *
+     * @param config 設定
+     * @return ヘッドレス構成のJR-100
+     */
+    public JR100 create(JR100Config config) {
+        return new JR100(config, romImage);
+    }
+
+    /**
+     * JR-100の電源を入れ、ホストのスケジューラで実行する。
+     * 実行は電源を切る(Computer.powerOff)まで続く。
+     *
+     * @param computer このホストで作ったJR-100
+     * @return 電源が切れたときに完了するFuture
+     */
+    public CompletableFuture<Void> start(JR100 computer) {
+        return scheduler.start(computer);
+    }
+
+    /**
+     * ホストが作ったスケジューラを終了させる。
+     */
+    public void shutdown() {
+        if (ownScheduler) {
+            scheduler.shutdown();
+        }
+    }
+}
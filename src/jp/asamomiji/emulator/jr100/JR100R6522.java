@@ -11,13 +11,19 @@ package jp.asamomiji.emulator.jr100;
 
 import jp.asamomiji.emulator.AbstractSoundProcessor;
 import jp.asamomiji.emulator.Computer;
+import jp.asamomiji.emulator.StateSet;
 import jp.asamomiji.emulator.device.R6522;
 
 /*
  * JR100向けにカスタマイズしたR6522クラス
+ *
+ * スピーカーはPB7につながっている。PB7のレベルが変化する可能性のある処理の後でレベルを調べ、
+ * 変化していればそのクロックとともにサウンドプロセッサに送る。
  */
 public final class JR100R6522 extends R6522 {
-    private double prevFrequency = 0;
+    private int speakerLevel = 0;
+    // タイマ1のPB7出力。実機ではPB7の入出力の設定によらず出力される。
+    private int timer1Output = 0;
 
     public JR100R6522(Computer computer, int start) {
         super(computer, start);
@@ -27,16 +33,53 @@ public final class JR100R6522 extends R6522 {
         setPortB(6, inputPortB(7));
     }
 
+    /*
+     * スピーカーにつながるPB7のレベルを返す。
+     * タイマ1のPB7出力が有効な場合はタイマ1の出力、そうでなければPB7が出力に設定されている場合だけORBの値を使う。
+     */
+    private int getPB7Level() {
+        if ((ACR & 0x80) != 0) {
+            return timer1Output;
+        }
+        else {
+            return ((ORB & DDRB) >> 7) & 1;
+        }
+    }
+
+    private void updateSpeaker() {
+        int level = getPB7Level();
+        if (level == speakerLevel) {
+            return;
+        }
+        speakerLevel = level;
+        AbstractSoundProcessor sp = computer.getHardware().getSoundProcessor();
+        if (sp != null) {
+            sp.setLevel(currentClock, level);
+        }
+    }
+
     @Override
     protected void storeORB_option() {
         JR100Display d = (JR100Display)computer.getHardware().getDisplay();
+        if (d != null) {
+            d.setCurrentFont(getCurrentFont());
+        }
+        jumperPB7andPB6();
+        updateSpeaker();
+    }
+
+    /**
+     * PB5で選択されている文字プレーンを返す。
+     *
+     * @return JR100Display.FONT_NORMALまたはJR100Display.FONT_USER_DEFINED
+     */
+    public int getCurrentFont() {
         if ((inputPortB() & 0x20) == 0x20) {
-            d.setCurrentFont(JR100Display.FONT_USER_DEFINED);
+            return JR100Display.FONT_USER_DEFINED;
         }
         else {
-            d.setCurrentFont(JR100Display.FONT_NORMAL);
+            return JR100Display.FONT_NORMAL;
         }
-        jumperPB7andPB6();
     }
 
     @Override
@@ -49,37 +92,49 @@ public final class JR100R6522 extends R6522 {
     }
 
     @Override
-    protected void storeT1CH_option() {
-        AbstractSoundProcessor sp = computer.getHardware().getSoundProcessor();
-        if ((ACR & 0xc0) == 0xc0) {
-            double frequency = (double)(894886.25 / (timer1 + 2) / 2);
-            if (frequency == prevFrequency) {
-                sp.setLineOn();
-                return ;
-            }
-            prevFrequency = frequency;
-            sp.setFrequency(
-                    currentClock * 1000000000 / JR100.getPropertyOfCpuClockFrequency() + computer.getBaseTime(),
-                    frequency);
-            sp.setLineOn();
-        }
-        else {
-            sp.setLineOff();
-        }
+    protected void storeDDRB_option() {
+        updateSpeaker();
+    }
+
+    @Override
+    protected void storeACR_option() {
+        updateSpeaker();
     }
 
     @Override
-    protected void timer1TimeoutMode0_option() {
-        computer.getHardware().getSoundProcessor().setLineOff();
+    protected void storeT1CH_option() {
+        // T1CHへの書き込みではPB7をLowにする。タイムアウト後の再ロードでは変化しない。
+        if (timer1Initialized) {
+            timer1Output = 0;
+        }
+        updateSpeaker();
     }
 
     @Override
     protected void timer1TimeoutMode2_option() {
         jumperPB7andPB6();
+        timer1Output = 1;
+        updateSpeaker();
     }
 
     @Override
     protected void timer1TimeoutMode3_option() {
         jumperPB7andPB6();
+        timer1Output ^= 1;
+        updateSpeaker();
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
+        timer1Output = 0;
+        updateSpeaker();
+    }
+
+    @Override
+    public void loadState(StateSet ss) {
+        super.loadState(ss);
+        timer1Output = (portB >> 7) & 1;
+        updateSpeaker();
     }
 }
@@ -26,18 +26,23 @@ public class UserDefinedCharacterRam extends RAM implements StateSavable {
         this.display = display;
     }
 
+    @Override
+    public boolean isDirectlyWritable() {
+        return false;
+    }
+
     @Override
     public void store8(int address, byte value) {
         data[address - start] = value;
-        display.updateFont((address - start) / 8, (address - start) % 8, value);
+        if (display != null) {
+            display.markModified();
+        }
     }
 
     @Override
     public void store16(int address, short value) {
-        data[address - start] = (byte)(value >> 8);
-        display.updateFont((address - start) / 8, (address - start) % 8, value >> 8);
-        data[address - getStartAddress() + 1] = (byte)(value & 0xff);
-        display.updateFont((address - start) / 8, (address - start) % 8, value & 0xff);
+        store8(address, (byte)(value >> 8));
+        store8(address + 1, (byte)(value & 0xff));
     }
 
     public void saveState(StateSet ss) {
@@ -0,0 +1,180 @@
+/**
+ * JR-100 Emulator Version 2
+ *
+ * Copyright (c) 2006-2020 Kenichi Miyata
+ *
+ * This software is released under the the MIT license
+ * http://opensource.org/licenses/mit-license.php
+ */
+package jp.asamomiji.emulator.device;
+
+import java.util.Random;
+
+import jp.asamomiji.emulator.Computer;
+import jp.asamomiji.emulator.MemorySystem;
+import jp.asamomiji.emulator.RAM;
+import jp.asamomiji.emulator.ROM;
+import jp.asamomiji.emulator.StateSet;
+
+/*
+ * MB8861の命令実行エンジンの比較試験
+ *
+ * 乱数で埋めたメモリをプログラムとして、switch文のエンジンと他のエンジンを同じ条件で実行し、
+ * 1回の実行ごとに戻り値、クロック、レジスタと内部状態を、一定の間隔でメモリ全体を比較する。
+ * 1回に実行するクロック数と割り込みの発生は乱数で決める。
+ * プログラムは自身のメモリにも書き込むため、JITエンジンと事前デコードのエンジンの
+ * 書き換えの検出やコンパイルし直しの上限も試験される。
+ *
+ * 使い方: MB8861Fuzz [シード数] [1シードあたりの実行回数]
+ * 不一致を見つけた場合は内容を表示して終了コード1で終了する。
+ */
+public class MB8861Fuzz {
+    private final static int DEFAULT_SEEDS = 150;
+    private final static int DEFAULT_STEPS = 3000;
+    private final static int MEMORY_CHECK_INTERVAL = 500;
+    // JITエンジンがすぐにコンパイルするようにする。
+    private final static int COMPILE_THRESHOLD = 2;
+
+    private final static int[] ENGINES = {
+        MB8861.ENGINE_TABLE, MB8861.ENGINE_PREDECODE, MB8861.ENGINE_JIT
+    };
+    private final static String[] ENGINE_NAMES = {"switch", "table", "jit", "predecode"};
+
+    // 各エンジンに影響を与えないように周辺デバイスを持たないコンピュータ
+    private static class TestComputer extends Computer {
+        TestComputer() {
+            super(null, 0.02);
+        }
+
+        @Override
+        public int getClockFrequency() {
+            return 894000;
+        }
+
+        @Override
+        public void setClockFrequency(int f) {
+        }
+    }
+
+    private static class TestRam extends RAM {
+        TestRam(byte[] image, int start) {
+            super(start, image.length);
+            System.arraycopy(image, 0, data, 0, image.length);
+        }
+    }
+
+    private static class TestRom extends ROM {
+        TestRom(byte[] image, int start) {
+            super(start, image.length);
+            System.arraycopy(image, 0, data, 0, image.length);
+        }
+    }
+
+    private static Computer createComputer(byte[] ram, byte[] rom, int engine) {
+        Computer c = new TestComputer();
+        MemorySystem m = c.getHardware().getMemory();
+        m.allocateSpace(65536);
+        m.registMemory(new TestRam(ram, 0x0000));
+        m.registMemory(new TestRom(rom, 0xe000));
+        MB8861 cpu = new MB8861(c);
+        if (engine == MB8861.ENGINE_JIT) {
+            cpu.setCompileThreshold(COMPILE_THRESHOLD);
+        }
+        else {
+            cpu.setEngine(engine);
+        }
+        c.setCPU(cpu);
+        return c;
+    }
+
+    private static String state(MB8861 cpu) {
+        StateSet ss = new StateSet();
+        cpu.saveState(ss);
+        StringBuilder sb = new StringBuilder();
+        for (String key : new String[] {"A", "B", "IX", "SP", "PC", "CH", "CI", "CN", "CZ", "CV", "CC",
+                "resetStatus", "nmiStatus", "irqStatus", "haltStatus", "haltProcessed", "fetchWai"}) {
+            sb.append(key).append('=').append(ss.get("MB8861." + key)).append(' ');
+        }
+        return sb.toString();
+    }
+
+    /*
+     * 1つのシードについて比較する。
+     *
+     * @return 一致した場合はnull、不一致の場合はその内容
+     */
+    private static String run(long seed, int steps, int engine) {
+        Random rnd = new Random(seed);
+        byte[] ram = new byte[0xe000];
+        byte[] rom = new byte[0x2000];
+        rnd.nextBytes(ram);
+        rnd.nextBytes(rom);
+        if (seed % 2 == 0) {
+            // WAIで止まり続けないように、半分のシードではWAIを取り除く。
+            for (byte[] b : new byte[][] {ram, rom}) {
+                for (int i = 0; i < b.length; i++) {
+                    if (b[i] == 0x3e) {
+                        b[i] = 0x01;
+                    }
+                }
+            }
+        }
+        // 1回に実行するクロック数の上限(1から1024)
+        int chunk = 1 << rnd.nextInt(11);
+
+        Computer x = createComputer(ram, rom, MB8861.ENGINE_SWITCH);
+        Computer y = createComputer(ram, rom, engine);
+        MB8861 cx = (MB8861)x.getCPU();
+        MB8861 cy = (MB8861)y.getCPU();
+        cx.reset();
+        cy.reset();
+        for (int i = 0; i < steps; i++) {
+            int event = rnd.nextInt(200);
+            if (event == 0) {
+                cx.irq();
+                cy.irq();
+            }
+            else if (event == 1) {
+                cx.nmi();
+                cy.nmi();
+            }
+            int n = 1 + rnd.nextInt(chunk);
+            long rx = cx.execute(n);
+            long ry = cy.execute(n);
+            String sx = state(cx);
+            String sy = state(cy);
+            if (rx != ry || x.clockCount != y.clockCount || !sx.equals(sy)) {
+                return "step=" + i + " chunk=" + chunk + "\n"
+                        + "  switch: ret=" + rx + " clock=" + x.clockCount + " " + sx + "\n"
+                        + "  " + ENGINE_NAMES[engine] + ": ret=" + ry + " clock=" + y.clockCount + " " + sy;
+            }
+            if (i % MEMORY_CHECK_INTERVAL == 0 || i == steps - 1) {
+                MemorySystem mx = x.getHardware().getMemory();
+                MemorySystem my = y.getHardware().getMemory();
+                for (int address = 0; address < 0x10000; address++) {
+                    if (mx.load8(address) != my.load8(address)) {
+                        return String.format("step=%d chunk=%d memory mismatch at %04x: %02x/%02x",
+                                i, chunk, address, mx.load8(address) & 0xff, my.load8(address) & 0xff);
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    public static void main(String[] args) {
+        int seeds = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_SEEDS;
+        int steps = (args.length > 1) ? Integer.parseInt(args[1]) : DEFAULT_STEPS;
+
+        for (int engine : ENGINES) {
+            for (int seed = 0; seed < seeds; seed++) {
+                String error = run(seed, steps, engine);
+                if (error != null) {
+                    System.out.println("MISMATCH engine=" + ENGINE_NAMES[engine] + " seed=" + seed + " " + error);
+                    System.exit(1);
+                }
+            }
+            System.out.println(ENGINE_NAMES[engine] + ": " + seeds + " seeds OK");
+        }
+    }
+}